@@ -0,0 +1,18 @@
+import java.lang.management.ManagementFactory;
+
+// Runs jlite with the given arguments on this thread, then reports how
+// long it took and how much the thread allocated doing it.
+//   usage: java -cp <classes dir> bench/Alloc.java [jlite flags...] script
+public class Alloc {
+    public static void main(String[] args) throws Exception {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        long bytes = threads.getThreadAllocatedBytes(id);
+        long start = System.nanoTime();
+        lite.Lite.main(args);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        bytes = threads.getThreadAllocatedBytes(id) - bytes;
+        System.err.printf("%.2fs, %d MB allocated%n", seconds, bytes / 1000000);
+    }
+}
@@ -0,0 +1,21 @@
+#!/usr/bin/env bash
+# Runs every bench/*.jlite a few times and prints, for each run, the wall
+# time and the bytes the main thread allocated. Run it on the builds from
+# before and after a change to compare them, giving only the flags both
+# builds know.
+#   usage: bench/run.sh <classes dir> [jlite flags...]
+set -u
+
+classes=${1:?usage: bench/run.sh <classes dir> [jlite flags...]}
+shift
+flags=("$@")
+runs=${RUNS:-2}
+
+dir=$(cd "$(dirname "$0")" && pwd)
+for script in "$dir"/*.jlite; do
+    echo "${script##*/} ${flags[*]}"
+    for ((run = 0 ; run < runs ; ++run)); do
+        ${JAVA:-java} -cp "$classes" "$dir/Alloc.java" "${flags[@]}" "$script" 2>&1 >/dev/null \
+            | sed 's/^/    /'
+    done
+done
@@ -0,0 +1,26 @@
+#!/usr/bin/env bash
+# Runs every check/*.jlite under each executor and compares what it prints,
+# errors included, with the .out file next to it.
+#   usage: scripts/check.sh <classes dir> [executor flags...]
+set -u
+
+classes=${1:?usage: scripts/check.sh <classes dir> [executor flags...]}
+shift
+modes=("$@")
+[ ${#modes[@]} -eq 0 ] && modes=("" --no-jit --flat --lazy -O0 --vm)
+
+dir=$(cd "$(dirname "$0")/../check" && pwd)
+failed=0
+for script in "$dir"/*.jlite; do
+    expected=${script%.jlite}.out
+    for mode in "${modes[@]}"; do
+        actual=$(${JAVA:-java} -cp "$classes" lite.Lite --no-cache $mode "$script" 2>&1)
+        if [ "$actual" != "$(cat "$expected")" ]; then
+            echo "FAIL ${script##*/} ${mode:-(default)}"
+            diff <(echo "$actual") "$expected" | sed 's/^/    /'
+            failed=1
+        fi
+    done
+done
+[ $failed -eq 0 ] && echo "All checks passed."
+exit $failed
@@ -9,7 +9,9 @@ dir_path = sys.argv[1]
 
 
 ## Generates files with Visitor boilerplate
-def define_ast(BASE,types,dependencies=[]):
+## `state` lists extra mutable fields per type that later passes
+## (e.g. the Resolver) fill in after parsing.
+def define_ast(BASE,types,dependencies=[],state={}):
     base_file_name = dir_path+"/"+BASE+".java"
 
     meta_programming_message =  "// FILE GENERATED BY SCRIPT\n"
@@ -45,6 +47,8 @@ def define_ast(BASE,types,dependencies=[]):
             print("\t\t}",file=f)
             for attribute in attributes:
                 print("\t\tfinal "+attribute+";",file=f)
+            for field in state.get(type,[]):
+                print("\t\t"+field+";",file=f)
             print("\t\t@Override",file=f)
             print("\t\t<T> T accept(Visitor<T> visitor){",file=f)
             print("\t\t\treturn visitor.visit"+type+BASE+"(this);",file=f)
@@ -78,9 +82,18 @@ if __name__=="__main__":
         "Print"      : ["Expr expression"],
         "Var"        : ["Token name","Expr initializer"],
         "While"      : ["Expr condition","Stmt body"],
+        "ForRange"   : ["Token name","Expr start","Expr end","Expr step","Stmt body"],
         "Return"     : ["Token keyword","Expr value"],
         "Break"      : []
-    },dependencies=["java.util.List"])
+    },dependencies=["java.util.List"],state={
+        "Block"      : ["int slots","int[] hoisted"],
+        "Function"   : ["int slot=-1","int slots","int calls","Jit.Code jit","volatile LazyBody lazy",
+                        "boolean cell","boolean redeclaration","int[] captures","boolean[] cells",
+                        "int[] hoisted"],
+        "Var"        : ["int slot=-1","boolean cell","boolean redeclaration"],
+        "ForRange"   : ["int slot","int slots","boolean cell"],
+        "Return"     : ["boolean tailCall"]
+    })
     define_ast("Expr", {
         "Binary"   : ["Expr left", "Token operator", "Expr right"],
         "Call"     : ["Expr callee","Token paren","List<Expr> arguments"],
@@ -90,7 +103,13 @@ if __name__=="__main__":
         "Variable" : ["Token name"],
         "Grouping" : ["Expr expression"],
         "Literal"  : ["Object value"]
-    },dependencies=["java.util.List"])
+    },dependencies=["java.util.List"],state={
+        "Binary"   : ["byte specialized"],
+        "Call"     : ["Stmt.Function cached"],
+        "Unary"    : ["byte specialized"],
+        "Assign"   : ["int depth=-1","int slot=-1","boolean cell"],
+        "Variable" : ["int depth=-1","int slot=-1","boolean cell"]
+    })
 
 
 
@@ -0,0 +1,449 @@
+package lite;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Binary form of a resolved program for the ScriptCache. Every node is a
+// tag byte followed by its fields in declaration order, the Resolver's
+// slots included, then the names those slots number for the globals.
+// Strings are written once and referred to by index after that. Much
+// faster to read back than java.io serialization of the same tree, which
+// matters because reading it is the whole point.
+final class AstCodec {
+    private static final int MAGIC = 0x4a4c4331; // "JLC1"
+    private static final int NULL = 0xff;
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private AstCodec(){}
+
+    static void write(Script script, DataOutputStream out) throws IOException{
+        out.writeInt(MAGIC);
+        try{
+            Writer writer = new Writer(out);
+            writer.statements(script.statements);
+            writer.names(script.names);
+        }catch(UncheckedIOException error){
+            throw error.getCause();
+        }
+    }
+
+    static Script read(DataInputStream in) throws IOException{
+        if(in.readInt() != MAGIC) throw new IOException("Not a cached script.");
+        Reader reader = new Reader(in);
+        List<Stmt> statements = reader.statements();
+        return new Script(statements, reader.names());
+    }
+
+    private static final class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final DataOutputStream out;
+        private final Map<String,Integer> strings = new HashMap<>();
+
+        Writer(DataOutputStream out){
+            this.out = out;
+        }
+
+        void statements(List<Stmt> statements){
+            integer(statements.size());
+            for(Stmt statement : statements) stmt(statement);
+        }
+        // in the order of their indices
+        void names(Globals.Names names){
+            integer(names.size());
+            for(int i = 0 ; i < names.size() ; ++i) string(names.name(i));
+        }
+        private void stmt(Stmt stmt){
+            if(stmt == null) tag(NULL);
+            else stmt.accept(this);
+        }
+        private void expr(Expr expr){
+            if(expr == null) tag(NULL);
+            else expr.accept(this);
+        }
+        private void expressions(List<Expr> expressions){
+            integer(expressions.size());
+            for(Expr expression : expressions) expr(expression);
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt){
+            tag(0);
+            statements(stmt.statements);
+            integer(stmt.slots);
+            slots(stmt.hoisted);
+            return null;
+        }
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt){
+            tag(1);
+            expr(stmt.expression);
+            return null;
+        }
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt){
+            tag(2);
+            token(stmt.name);
+            integer(stmt.params.size());
+            for(Token param : stmt.params) token(param);
+            statements(LazyBody.force(stmt));
+            integer(stmt.slot);
+            integer(stmt.slots);
+            flag(stmt.cell);
+            flag(stmt.redeclaration);
+            integer(stmt.captures.length);
+            for(int capture : stmt.captures) integer(capture);
+            if(stmt.cells == null){
+                integer(-1);
+            }else{
+                integer(stmt.cells.length);
+                for(boolean cell : stmt.cells) flag(cell);
+            }
+            slots(stmt.hoisted);
+            return null;
+        }
+        @Override
+        public Void visitIfStmt(Stmt.If stmt){
+            tag(3);
+            expr(stmt.condition);
+            stmt(stmt.thenBranch);
+            stmt(stmt.elseBranch);
+            return null;
+        }
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt){
+            tag(4);
+            expr(stmt.expression);
+            return null;
+        }
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt){
+            tag(5);
+            token(stmt.name);
+            expr(stmt.initializer);
+            integer(stmt.slot);
+            flag(stmt.cell);
+            flag(stmt.redeclaration);
+            return null;
+        }
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt){
+            tag(6);
+            expr(stmt.condition);
+            stmt(stmt.body);
+            return null;
+        }
+        @Override
+        public Void visitForRangeStmt(Stmt.ForRange stmt){
+            tag(9);
+            token(stmt.name);
+            expr(stmt.start);
+            expr(stmt.end);
+            expr(stmt.step);
+            stmt(stmt.body);
+            integer(stmt.slot);
+            integer(stmt.slots);
+            flag(stmt.cell);
+            return null;
+        }
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt){
+            tag(7);
+            token(stmt.keyword);
+            expr(stmt.value);
+            flag(stmt.tailCall);
+            return null;
+        }
+        @Override
+        public Void visitBreakStmt(Stmt.Break stmt){
+            tag(8);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr){
+            tag(0);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+        @Override
+        public Void visitCallExpr(Expr.Call expr){
+            tag(1);
+            expr(expr.callee);
+            token(expr.paren);
+            expressions(expr.arguments);
+            return null;
+        }
+        @Override
+        public Void visitTernaryExpr(Expr.Ternary expr){
+            tag(2);
+            expr(expr.left);
+            expr(expr.middle);
+            expr(expr.right);
+            return null;
+        }
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr){
+            tag(3);
+            token(expr.name);
+            expr(expr.value);
+            integer(expr.depth);
+            integer(expr.slot);
+            flag(expr.cell);
+            return null;
+        }
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr){
+            tag(4);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr){
+            tag(5);
+            token(expr.name);
+            integer(expr.depth);
+            integer(expr.slot);
+            flag(expr.cell);
+            return null;
+        }
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr){
+            tag(6);
+            expr(expr.expression);
+            return null;
+        }
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr){
+            tag(7);
+            value(expr.value);
+            return null;
+        }
+
+        private void token(Token token){
+            tag(token.type.ordinal());
+            string(token.lexeme);
+            value(token.literal);
+            integer(token.line);
+        }
+        private void value(Object value){
+            if(value == null){
+                tag(0);
+            }else if(value instanceof Boolean){
+                tag((boolean)value ? 1 : 2);
+            }else if(value instanceof Double){
+                tag(3);
+                try{
+                    out.writeDouble((double)value);
+                }catch(IOException error){
+                    throw new UncheckedIOException(error);
+                }
+            }else{
+                tag(4);
+                string((String)value);
+            }
+        }
+        // index of a string already written, or -1 and its UTF-8 bytes
+        private void string(String string){
+            Integer index = strings.get(string);
+            if(index != null){
+                integer(index);
+                return;
+            }
+            strings.put(string, strings.size());
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            integer(-1);
+            integer(bytes.length);
+            try{
+                out.write(bytes);
+            }catch(IOException error){
+                throw new UncheckedIOException(error);
+            }
+        }
+        private void flag(boolean flag){
+            tag(flag ? 1 : 0);
+        }
+        // -1 for null
+        private void slots(int[] slots){
+            if(slots == null){
+                integer(-1);
+                return;
+            }
+            integer(slots.length);
+            for(int slot : slots) integer(slot);
+        }
+        private void tag(int tag){
+            try{
+                out.writeByte(tag);
+            }catch(IOException error){
+                throw new UncheckedIOException(error);
+            }
+        }
+        private void integer(int value){
+            try{
+                out.writeInt(value);
+            }catch(IOException error){
+                throw new UncheckedIOException(error);
+            }
+        }
+    }
+
+    private static final class Reader {
+        private final DataInputStream in;
+        private final List<String> strings = new ArrayList<>();
+
+        Reader(DataInputStream in){
+            this.in = in;
+        }
+
+        List<Stmt> statements() throws IOException{
+            int size = in.readInt();
+            List<Stmt> statements = new ArrayList<>(size);
+            for(int i = 0 ; i < size ; ++i) statements.add(stmt());
+            return statements;
+        }
+        Globals.Names names() throws IOException{
+            int size = in.readInt();
+            Globals.Names names = new Globals.Names();
+            for(int i = 0 ; i < size ; ++i) names.index(string());
+            return names;
+        }
+        private Stmt stmt() throws IOException{
+            int tag = in.readUnsignedByte();
+            switch(tag){
+                case 0: {
+                    Stmt.Block block = new Stmt.Block(statements());
+                    block.slots = in.readInt();
+                    block.hoisted = slots();
+                    return block;
+                }
+                case 1: return new Stmt.Expression(expr());
+                case 2: {
+                    Token name = token();
+                    int count = in.readInt();
+                    List<Token> params = new ArrayList<>(count);
+                    for(int i = 0 ; i < count ; ++i) params.add(token());
+                    Stmt.Function function = new Stmt.Function(name, params, statements());
+                    function.slot = in.readInt();
+                    function.slots = in.readInt();
+                    function.cell = flag();
+                    function.redeclaration = flag();
+                    function.captures = new int[in.readInt()];
+                    for(int i = 0 ; i < function.captures.length ; ++i) function.captures[i] = in.readInt();
+                    int cells = in.readInt();
+                    if(cells >= 0){
+                        function.cells = new boolean[cells];
+                        for(int i = 0 ; i < cells ; ++i) function.cells[i] = flag();
+                    }
+                    function.hoisted = slots();
+                    return function;
+                }
+                case 3: return new Stmt.If(expr(), stmt(), stmt());
+                case 4: return new Stmt.Print(expr());
+                case 5: {
+                    Stmt.Var var = new Stmt.Var(token(), expr());
+                    var.slot = in.readInt();
+                    var.cell = flag();
+                    var.redeclaration = flag();
+                    return var;
+                }
+                case 6: return new Stmt.While(expr(), stmt());
+                case 7: {
+                    Stmt.Return stmt = new Stmt.Return(token(), expr());
+                    stmt.tailCall = flag();
+                    return stmt;
+                }
+                case 8: return new Stmt.Break();
+                case 9: {
+                    Stmt.ForRange loop = new Stmt.ForRange(token(), expr(), expr(), expr(), stmt());
+                    loop.slot = in.readInt();
+                    loop.slots = in.readInt();
+                    loop.cell = flag();
+                    return loop;
+                }
+                case NULL: return null;
+                default: throw new IOException("Bad statement tag "+tag+".");
+            }
+        }
+        private Expr expr() throws IOException{
+            int tag = in.readUnsignedByte();
+            switch(tag){
+                case 0: return new Expr.Binary(expr(), token(), expr());
+                case 1: {
+                    Expr callee = expr();
+                    Token paren = token();
+                    int count = in.readInt();
+                    List<Expr> arguments = new ArrayList<>(count);
+                    for(int i = 0 ; i < count ; ++i) arguments.add(expr());
+                    return new Expr.Call(callee, paren, arguments);
+                }
+                case 2: return new Expr.Ternary(expr(), expr(), expr());
+                case 3: {
+                    Expr.Assign assign = new Expr.Assign(token(), expr());
+                    assign.depth = in.readInt();
+                    assign.slot = in.readInt();
+                    assign.cell = flag();
+                    return assign;
+                }
+                case 4: return new Expr.Unary(token(), expr());
+                case 5: {
+                    Expr.Variable variable = new Expr.Variable(token());
+                    variable.depth = in.readInt();
+                    variable.slot = in.readInt();
+                    variable.cell = flag();
+                    return variable;
+                }
+                case 6: return new Expr.Grouping(expr());
+                case 7: return new Expr.Literal(value());
+                case NULL: return null;
+                default: throw new IOException("Bad expression tag "+tag+".");
+            }
+        }
+        private Token token() throws IOException{
+            TokenType type = TYPES[in.readUnsignedByte()];
+            String lexeme = string();
+            // names are interned like the Scanner's
+            if(type == TokenType.IDENTIFIER) lexeme = lexeme.intern();
+            Object literal = value();
+            return new Token(type, lexeme, literal, in.readInt());
+        }
+        private boolean flag() throws IOException{
+            return in.readUnsignedByte() == 1;
+        }
+        private int[] slots() throws IOException{
+            int count = in.readInt();
+            if(count < 0) return null;
+            int[] slots = new int[count];
+            for(int i = 0 ; i < count ; ++i) slots[i] = in.readInt();
+            return slots;
+        }
+        private Object value() throws IOException{
+            int tag = in.readUnsignedByte();
+            switch(tag){
+                case 0: return null;
+                case 1: return true;
+                case 2: return false;
+                case 3: return in.readDouble();
+                case 4: return string();
+                default: throw new IOException("Bad value tag "+tag+".");
+            }
+        }
+        private String string() throws IOException{
+            int index = in.readInt();
+            if(index >= 0) return strings.get(index);
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            String string = new String(bytes, StandardCharsets.UTF_8);
+            strings.add(string);
+            return string;
+        }
+    }
+}
@@ -79,6 +79,13 @@ class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String>{
         return parenthesize("while("+stmt.condition.accept(this)+")", stmt.body);
     }
 
+    @Override
+    public String visitForRangeStmt(Stmt.ForRange stmt) {
+        String range = stmt.start.accept(this)+".."+stmt.end.accept(this);
+        if(stmt.step != null) range += ":"+stmt.step.accept(this);
+        return parenthesize("for("+stmt.name.lexeme+" in "+range+")", stmt.body);
+    }
+
     @Override 
     public String visitBreakStmt(Stmt.Break stmt){
         return "break";
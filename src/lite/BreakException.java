@@ -1,7 +0,0 @@
-package lite;
-
-public class BreakException extends RuntimeException{
-    BreakException(){
-        super(null,null,false,false);
-    }
-}
@@ -0,0 +1,576 @@
+package lite;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lite.vm.Chunk;
+import lite.vm.CompiledFunction;
+import lite.vm.VM;
+
+import static lite.vm.OpCode.*;
+
+// Lowers the trees produced by the Parser into bytecode for lite.vm.VM.
+// Top level declarations become globals, everything declared inside a
+// block or function lives in a VM stack slot; variables captured by an
+// inner function are reached through upvalues.
+//
+// A local the Resolver lists as hoisted, one a closure captures before its
+// declaration, gets its slot as its scope begins. Until the declaration
+// stores into it the slot holds a Hoisted for what the name means outside
+// the scope, and code of the same function looks past it.
+class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    private static class Local{
+        final String name;
+        final int depth;
+        boolean captured = false;
+        boolean declared = true;
+
+        Local(String name, int depth){
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+    private static class UpvalueRef{
+        final int index;
+        final boolean isLocal;
+
+        UpvalueRef(int index, boolean isLocal){
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+    private static class Loop{
+        final int scopeDepth;
+        final List<Integer> breaks = new ArrayList<>();
+
+        Loop(int scopeDepth){
+            this.scopeDepth = scopeDepth;
+        }
+    }
+    private static class FunctionState{
+        final FunctionState enclosing;
+        final CompiledFunction function;
+        final List<Local> locals = new ArrayList<>();
+        final List<UpvalueRef> upvalues = new ArrayList<>();
+        final List<Loop> loops = new ArrayList<>();
+        int scopeDepth = 0;
+
+        FunctionState(FunctionState enclosing, CompiledFunction function){
+            this.enclosing = enclosing;
+            this.function = function;
+            // slot 0 holds the function being called
+            locals.add(new Local("", 0));
+        }
+    }
+
+    private static final int MAX_INDEX = 0xffff;
+
+    private FunctionState current = null;
+    private int line = 1;
+    private final ErrorSink errors;
+    // gives each global its slot
+    private final VM vm;
+    private boolean hadError = false;
+
+    BytecodeCompiler(ErrorSink errors, VM vm){
+        this.errors = errors;
+        this.vm = vm;
+    }
+
+    CompiledFunction compile(List<Stmt> statements){
+        current = new FunctionState(null, new CompiledFunction(null, 0));
+        for(Stmt statement : statements){
+            compile(statement);
+        }
+        emit(NIL);
+        emit(RETURN);
+        return endFunction();
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt){
+        beginScope();
+        hoist(stmt.hoisted, stmt.statements);
+        for(Stmt statement : stmt.statements){
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt){
+        compile(stmt.expression);
+        emit(POP);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt){
+        line = stmt.name.line;
+        if(current.scopeDepth == 0){
+            function(stmt);
+            emitIndexed(DEFINE_GLOBAL, globalSlot(stmt.name.lexeme));
+            return null;
+        }
+
+        // declared before the body so the function can capture itself
+        int existing = localInCurrentScope(stmt.name.lexeme);
+        if(existing < 0){
+            addLocal(stmt.name.lexeme);
+            function(stmt);
+        }else{
+            function(stmt);
+            emitIndexed(SET_LOCAL, existing);
+            emit(POP);
+            current.locals.get(existing).declared = true;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt){
+        compile(stmt.condition);
+        int thenJump = emitJump(JUMP_IF_FALSE);
+        compile(stmt.thenBranch);
+        if(stmt.elseBranch == null){
+            patchJump(thenJump);
+            return null;
+        }
+        int elseJump = emitJump(JUMP);
+        patchJump(thenJump);
+        compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt){
+        compile(stmt.expression);
+        emit(PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt){
+        // the initializer is compiled first so it still sees
+        // any outer variable with the same name
+        if(stmt.initializer != null) compile(stmt.initializer);
+        else emit(NIL);
+        line = stmt.name.line;
+
+        if(current.scopeDepth == 0){
+            emitIndexed(DEFINE_GLOBAL, globalSlot(stmt.name.lexeme));
+            return null;
+        }
+        int existing = localInCurrentScope(stmt.name.lexeme);
+        if(existing < 0){
+            addLocal(stmt.name.lexeme);
+        }else{
+            emitIndexed(SET_LOCAL, existing);
+            emit(POP);
+            current.locals.get(existing).declared = true;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt){
+        int loopStart = currentChunk().count();
+        int exitJump = -1;
+        if(!Optimizer.alwaysTrue(stmt.condition)){
+            compile(stmt.condition);
+            exitJump = emitJump(JUMP_IF_FALSE);
+        }
+
+        Loop loop = new Loop(current.scopeDepth);
+        current.loops.add(loop);
+        compile(stmt.body);
+        current.loops.remove(current.loops.size()-1);
+
+        emitLoop(loopStart);
+        if(exitJump >= 0) patchJump(exitJump);
+        for(int jump : loop.breaks) patchJump(jump);
+        return null;
+    }
+
+    // The counter, end and step sit in three hidden locals around the loop,
+    // the loop variable in a scope of its own that each iteration drops.
+    @Override
+    public Void visitForRangeStmt(Stmt.ForRange stmt){
+        beginScope();
+        compile(stmt.start);
+        line = stmt.name.line;
+        emit(RANGE_BOUND);
+        compile(stmt.end);
+        line = stmt.name.line;
+        emit(RANGE_BOUND);
+        if(stmt.step == null){
+            emitIndexed(CONSTANT, makeConstant(1.0));
+        }else{
+            compile(stmt.step);
+            line = stmt.name.line;
+            emit(RANGE_STEP);
+        }
+        int counter = current.locals.size();
+        // names no identifier can refer to
+        addLocal(" counter");
+        addLocal(" end");
+        addLocal(" step");
+
+        int loopStart = currentChunk().count();
+        emitIndexed(FOR_RANGE, counter);
+        emit(0xff);
+        emit(0xff);
+        int exitJump = currentChunk().count()-2;
+        Loop loop = new Loop(current.scopeDepth);
+        current.loops.add(loop);
+        beginScope();
+        addLocal(stmt.name.lexeme);
+        compile(stmt.body);
+        endScope();
+        current.loops.remove(current.loops.size()-1);
+
+        emitIndexed(GET_LOCAL, counter);
+        emitIndexed(GET_LOCAL, counter+2);
+        emit(ADD);
+        emitIndexed(SET_LOCAL, counter);
+        emit(POP);
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        for(int jump : loop.breaks) patchJump(jump);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt){
+        line = stmt.keyword.line;
+        if(stmt.value != null) compile(stmt.value);
+        else emit(NIL);
+        emit(RETURN);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt){
+        Loop loop = current.loops.get(current.loops.size()-1);
+        // drop whatever the loop body declared before leaving it
+        for(int i = current.locals.size()-1 ; i >= 0 ; --i){
+            Local local = current.locals.get(i);
+            if(local.depth <= loop.scopeDepth) break;
+            emit(local.captured ? CLOSE_UPVALUE : POP);
+        }
+        loop.breaks.add(emitJump(JUMP));
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr){
+        compile(expr.left);
+        compile(expr.right);
+        line = expr.operator.line;
+        switch(expr.operator.type){
+            case EQUAL_EQUAL:   emit(EQUAL); break;
+            case BANG_EQUAL:    emit(NOT_EQUAL); break;
+            case GREATER:       emit(GREATER); break;
+            case GREATER_EQUAL: emit(GREATER_EQUAL); break;
+            case LESS:          emit(LESS); break;
+            case LESS_EQUAL:    emit(LESS_EQUAL); break;
+            case PLUS:          emit(ADD); break;
+            case MINUS:         emit(SUBTRACT); break;
+            case STAR:          emit(MULTIPLY); break;
+            case SLASH:         emit(DIVIDE); break;
+            case AND:           emit(AND); break;
+            case OR:            emit(OR); break;
+            case BIT_AND:       emit(BIT_AND); break;
+            case BIT_OR:        emit(BIT_OR); break;
+            case BIT_XOR:       emit(BIT_XOR); break;
+            default: // supress warning
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr){
+        compile(expr.callee);
+        for(Expr argument : expr.arguments){
+            compile(argument);
+        }
+        line = expr.paren.line;
+        emit(CALL);
+        emit(expr.arguments.size());
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr){
+        compile(expr.left);
+        int elseJump = emitJump(JUMP_IF_FALSE);
+        compile(expr.middle);
+        int endJump = emitJump(JUMP);
+        patchJump(elseJump);
+        compile(expr.right);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr){
+        compile(expr.value);
+        line = expr.name.line;
+        String name = expr.name.lexeme;
+
+        int slot = resolveLocal(current, name);
+        if(slot >= 0){
+            emitIndexed(SET_LOCAL, slot);
+            return null;
+        }
+        int upvalue = resolveUpvalue(current, name);
+        if(upvalue >= 0){
+            emitIndexed(SET_UPVALUE, upvalue);
+            return null;
+        }
+        emitIndexed(SET_GLOBAL, globalSlot(name));
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr){
+        compile(expr.right);
+        line = expr.operator.line;
+        switch(expr.operator.type){
+            case BANG:    emit(NOT); break;
+            case MINUS:   emit(NEGATE); break;
+            case BIT_NOT: emit(BIT_NOT); break;
+            default: // supress warning
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr){
+        line = expr.name.line;
+        String name = expr.name.lexeme;
+
+        int slot = resolveLocal(current, name);
+        if(slot >= 0){
+            emitIndexed(GET_LOCAL, slot);
+            return null;
+        }
+        int upvalue = resolveUpvalue(current, name);
+        if(upvalue >= 0){
+            emitIndexed(GET_UPVALUE, upvalue);
+            return null;
+        }
+        emitIndexed(GET_GLOBAL, globalSlot(name));
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr){
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr){
+        if(expr.value == null) emit(NIL);
+        else if(expr.value.equals(true)) emit(TRUE);
+        else if(expr.value.equals(false)) emit(FALSE);
+        else emitIndexed(CONSTANT, makeConstant(expr.value));
+        return null;
+    }
+
+    private void compile(Stmt stmt){
+        stmt.accept(this);
+    }
+    private void compile(Expr expr){
+        expr.accept(this);
+    }
+
+    private void function(Stmt.Function stmt){
+        FunctionState enclosing = current;
+        current = new FunctionState(enclosing,
+            new CompiledFunction(stmt.name.lexeme, stmt.params.size()));
+        beginScope();
+        for(Token param : stmt.params){
+            addLocal(param.lexeme);
+        }
+        hoist(stmt.hoisted, stmt.body);
+        for(Stmt statement : stmt.body){
+            compile(statement);
+        }
+        emit(NIL);
+        emit(RETURN);
+
+        List<UpvalueRef> upvalues = current.upvalues;
+        CompiledFunction function = endFunction();
+        current = enclosing;
+
+        line = stmt.name.line;
+        emitIndexed(CLOSURE, makeConstant(function));
+        for(UpvalueRef upvalue : upvalues){
+            emit(upvalue.isLocal ? 1 : 0);
+            emit(upvalue.index >> 8);
+            emit(upvalue.index);
+        }
+    }
+    private CompiledFunction endFunction(){
+        CompiledFunction function = current.function;
+        function.setUpvalueCount(current.upvalues.size());
+        function.chunk().finish();
+        return function;
+    }
+
+    // Gives each entry of a scope's hoisted list, four ints starting with
+    // the slot the Resolver gave it, its local now, holding a Hoisted for
+    // the name resolved as if the local were not there yet.
+    private void hoist(int[] hoisted, List<Stmt> statements){
+        if(hoisted == null) return;
+        for(int i = 0 ; i < hoisted.length ; i += 4){
+            String name = declaredAt(statements, hoisted[i]);
+            line = hoisted[i+3];
+            int slot = resolveLocal(current, name);
+            int upvalue = slot < 0 ? resolveUpvalue(current, name) : -1;
+            if(slot >= 0){
+                current.locals.get(slot).captured = true;
+                emitIndexed(HOISTED_LOCAL, slot);
+            }else if(upvalue >= 0){
+                emitIndexed(HOISTED_UPVALUE, upvalue);
+            }else{
+                emitIndexed(HOISTED_GLOBAL, globalSlot(name));
+            }
+            addLocal(name);
+            current.locals.get(current.locals.size()-1).declared = false;
+        }
+    }
+    private static String declaredAt(List<Stmt> statements, int slot){
+        for(Stmt statement : statements){
+            if(statement instanceof Stmt.Var && ((Stmt.Var)statement).slot == slot){
+                return ((Stmt.Var)statement).name.lexeme;
+            }
+            if(statement instanceof Stmt.Function && ((Stmt.Function)statement).slot == slot){
+                return ((Stmt.Function)statement).name.lexeme;
+            }
+        }
+        throw new IllegalStateException("no declaration in slot "+slot);
+    }
+
+    private void beginScope(){
+        current.scopeDepth++;
+    }
+    private void endScope(){
+        current.scopeDepth--;
+        List<Local> locals = current.locals;
+        while(!locals.isEmpty() && locals.get(locals.size()-1).depth > current.scopeDepth){
+            emit(locals.remove(locals.size()-1).captured ? CLOSE_UPVALUE : POP);
+        }
+    }
+    private void addLocal(String name){
+        if(current.locals.size() > MAX_INDEX){
+            error("Too many local variables in function.");
+            return;
+        }
+        current.locals.add(new Local(name, current.scopeDepth));
+    }
+    // redeclaring a name in the same scope reuses its slot
+    private int localInCurrentScope(String name){
+        for(int i = current.locals.size()-1 ; i >= 0 ; --i){
+            Local local = current.locals.get(i);
+            if(local.depth < current.scopeDepth) break;
+            if(local.name.equals(name)) return i;
+        }
+        return -1;
+    }
+    // an undeclared local is only there for the closures inside state
+    private int resolveLocal(FunctionState state, String name){
+        for(int i = state.locals.size()-1 ; i > 0 ; --i){
+            Local local = state.locals.get(i);
+            if(!local.name.equals(name)) continue;
+            if(local.declared || state != current) return i;
+        }
+        return -1;
+    }
+    private int resolveUpvalue(FunctionState state, String name){
+        if(state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if(local >= 0){
+            state.enclosing.locals.get(local).captured = true;
+            return addUpvalue(state, local, true);
+        }
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if(upvalue >= 0) return addUpvalue(state, upvalue, false);
+        return -1;
+    }
+    private int addUpvalue(FunctionState state, int index, boolean isLocal){
+        for(int i = 0 ; i < state.upvalues.size() ; ++i){
+            UpvalueRef upvalue = state.upvalues.get(i);
+            if(upvalue.index == index && upvalue.isLocal == isLocal) return i;
+        }
+        if(state.upvalues.size() > MAX_INDEX){
+            error("Too many closure variables in function.");
+            return 0;
+        }
+        state.upvalues.add(new UpvalueRef(index, isLocal));
+        return state.upvalues.size()-1;
+    }
+
+    // one of the VM's limits was exceeded
+    boolean hadError(){
+        return hadError;
+    }
+    private void error(String message){
+        errors.syntaxError(line, " ", message);
+        hadError = true;
+    }
+
+    private Chunk currentChunk(){
+        return current.function.chunk();
+    }
+    private int makeConstant(Object value){
+        int index = currentChunk().addConstant(value);
+        if(index > MAX_INDEX){
+            error("Too many constants in one chunk.");
+            return 0;
+        }
+        return index;
+    }
+    private int globalSlot(String name){
+        int slot = vm.globalSlot(name);
+        if(slot > MAX_INDEX){
+            error("Too many global variables.");
+            return 0;
+        }
+        return slot;
+    }
+    private void emit(int b){
+        currentChunk().write(b, line);
+    }
+    private void emitIndexed(byte op, int index){
+        emit(op);
+        emit(index >> 8);
+        emit(index);
+    }
+    private int emitJump(byte op){
+        emit(op);
+        emit(0xff);
+        emit(0xff);
+        return currentChunk().count()-2;
+    }
+    private void patchJump(int offset){
+        int jump = currentChunk().count() - offset - 2;
+        if(jump > MAX_INDEX) error("Too much code to jump over.");
+        currentChunk().patch(offset, jump >> 8);
+        currentChunk().patch(offset+1, jump);
+    }
+    private void emitLoop(int loopStart){
+        emit(LOOP);
+        int offset = currentChunk().count() - loopStart + 2;
+        if(offset > MAX_INDEX) error("Loop body too large.");
+        emit(offset >> 8);
+        emit(offset);
+    }
+}
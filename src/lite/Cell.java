@@ -0,0 +1,60 @@
+package lite;
+
+// Box for a local variable that an inner function captures. The variable's
+// slot holds the Cell rather than the value, and every closure that
+// captured it holds the same Cell, so an assignment on either side is seen
+// by both.
+class Cell {
+    // what a Cell made on entering a scope holds until the declaration of
+    // its variable runs, see Resolver
+    static final Object UNDECLARED = new Object();
+
+    Object value;
+
+    Cell(Object value){
+        this.value = value;
+    }
+
+    // the variable's value, or while it is undeclared that of the name
+    // outside its scope; a declaration sets value directly
+    Object get(){
+        Object value = this.value;
+        return value == UNDECLARED ? ((Hoisted)this).outer() : value;
+    }
+    void set(Object value){
+        if(this.value == UNDECLARED) ((Hoisted)this).outer(value);
+        else this.value = value;
+    }
+
+    // One entry of a scope's hoisted list, made as frame is entered: depth
+    // and slot of the enclosing variable's Cell, or -1 and the global's
+    // index in the link of frame.
+    static Cell hoisted(Environment frame, int depth, int slot, int line){
+        if(depth >= 0) return new Hoisted((Cell)frame.getAt(depth, slot), null, 0, null);
+        Token name = new Token(TokenType.IDENTIFIER, frame.link.name(slot), null, line);
+        return new Hoisted(null, frame.link, slot, name);
+    }
+
+    private static final class Hoisted extends Cell {
+        private final Cell outer;
+        private final Globals.Link link;
+        private final int index;
+        private final Token name;
+
+        Hoisted(Cell outer, Globals.Link link, int index, Token name){
+            super(UNDECLARED);
+            this.outer = outer;
+            this.link = link;
+            this.index = index;
+            this.name = name;
+        }
+
+        Object outer(){
+            return outer != null ? outer.get() : link.get(index, name);
+        }
+        void outer(Object value){
+            if(outer != null) outer.set(value);
+            else link.assign(index, name, value);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package lite;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// A bounded queue between tasks, made by channel(capacity). send blocks
+// while it is full and recv while it is empty, values come out in the
+// order they went in.
+final class Channel {
+    // stands for nil, which the queue cannot hold
+    private static final Object NIL = new Object();
+
+    private final BlockingQueue<Object> values;
+
+    Channel(int capacity){
+        this.values = new ArrayBlockingQueue<>(capacity);
+    }
+
+    void send(Object value){
+        try{
+            values.put(value == null ? NIL : value);
+        }catch(InterruptedException error){
+            Thread.currentThread().interrupt();
+            throw new RuntimeError(null, "Interrupted while sending.");
+        }
+    }
+
+    Object receive(){
+        try{
+            Object value = values.take();
+            return value == NIL ? null : value;
+        }catch(InterruptedException error){
+            Thread.currentThread().interrupt();
+            throw new RuntimeError(null, "Interrupted while receiving.");
+        }
+    }
+
+    @Override
+    public String toString(){
+        return "<channel>";
+    }
+}
@@ -0,0 +1,395 @@
+package lite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of the JVM class file format for the Jit: a single class
+// with fields, methods and their Code attributes. Classes are written as
+// version 49 so the verifier infers types itself and no StackMapTable
+// has to be computed.
+class ClassWriter {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL  = 0x0010;
+    static final int ACC_SUPER  = 0x0020;
+
+    // thrown when something does not fit the class file limits
+    static class TooLarge extends RuntimeException{
+        private static final long serialVersionUID = 1L;
+
+        TooLarge(String message){
+            super(message, null, false, false);
+        }
+    }
+
+    private final Bytes pool = new Bytes();
+    private final Map<String,Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final List<Integer> interfaces = new ArrayList<>();
+    private final Bytes fields = new Bytes();
+    private int fieldCount = 0;
+    private final Bytes methods = new Bytes();
+    private int methodCount = 0;
+
+    ClassWriter(String name, String superName, String... interfaceNames){
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        for(String interfaceName : interfaceNames){
+            interfaces.add(classRef(interfaceName));
+        }
+    }
+
+    void field(int access, String name, String descriptor){
+        fields.u2(access);
+        fields.u2(utf8(name));
+        fields.u2(utf8(descriptor));
+        fields.u2(0);
+        fieldCount++;
+    }
+
+    Code method(int access, String name, String descriptor){
+        return new Code(access, name, descriptor);
+    }
+
+    byte[] toByteArray(){
+        Bytes out = new Bytes();
+        out.u4(0xCAFEBABE);
+        out.u2(0);
+        out.u2(49);
+        out.u2(poolCount);
+        out.bytes(pool);
+        out.u2(ACC_FINAL | ACC_SUPER);
+        out.u2(thisClass);
+        out.u2(superClass);
+        out.u2(interfaces.size());
+        for(int index : interfaces) out.u2(index);
+        out.u2(fieldCount);
+        out.bytes(fields);
+        out.u2(methodCount);
+        out.bytes(methods);
+        out.u2(0);
+        return out.toByteArray();
+    }
+
+    // constant pool
+
+    int utf8(String value){
+        String key = "U" + value;
+        Integer index = poolIndex.get(key);
+        if(index != null) return index;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try{
+            new DataOutputStream(buffer).writeUTF(value);
+        }catch(IOException error){
+            throw new TooLarge("Constant too long.");
+        }
+        pool.u1(1);
+        pool.raw(buffer.toByteArray());
+        return register(key);
+    }
+    int classRef(String name){
+        String key = "C" + name;
+        Integer index = poolIndex.get(key);
+        if(index != null) return index;
+        int nameIndex = utf8(name);
+        pool.u1(7);
+        pool.u2(nameIndex);
+        return register(key);
+    }
+    int fieldRef(String owner, String name, String descriptor){
+        return memberRef(9, owner, name, descriptor);
+    }
+    int methodRef(String owner, String name, String descriptor){
+        return memberRef(10, owner, name, descriptor);
+    }
+    int interfaceMethodRef(String owner, String name, String descriptor){
+        return memberRef(11, owner, name, descriptor);
+    }
+    private int memberRef(int tag, String owner, String name, String descriptor){
+        String key = tag + owner + "." + name + ":" + descriptor;
+        Integer index = poolIndex.get(key);
+        if(index != null) return index;
+        int ownerIndex = classRef(owner);
+        int nameAndType = nameAndType(name, descriptor);
+        pool.u1(tag);
+        pool.u2(ownerIndex);
+        pool.u2(nameAndType);
+        return register(key);
+    }
+    private int nameAndType(String name, String descriptor){
+        String key = "N" + name + ":" + descriptor;
+        Integer index = poolIndex.get(key);
+        if(index != null) return index;
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        pool.u1(12);
+        pool.u2(nameIndex);
+        pool.u2(descriptorIndex);
+        return register(key);
+    }
+    private int register(String key){
+        if(poolCount > 0xffff) throw new TooLarge("Too many constants.");
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    static class Label{
+        int position = -1;
+        int stack = -1;
+        private final List<Integer> fixups = new ArrayList<>();
+    }
+
+    // Bytecode of one method. Tracks the operand stack depth as
+    // instructions are emitted so max_stack comes out right.
+    class Code{
+        static final int ACONST_NULL = 0x01;
+        static final int DCONST_1 = 0x0f;
+        static final int DLOAD = 0x18;
+        static final int ALOAD = 0x19;
+        static final int DSTORE = 0x39;
+        static final int ASTORE = 0x3a;
+        static final int AALOAD = 0x32;
+        static final int AASTORE = 0x53;
+        static final int POP = 0x57;
+        static final int DUP = 0x59;
+        static final int DADD = 0x63;
+        static final int IXOR = 0x82;
+        static final int IFEQ = 0x99;
+        static final int GOTO = 0xa7;
+        static final int IRETURN = 0xac;
+        static final int ARETURN = 0xb0;
+        static final int RETURN = 0xb1;
+        static final int GETSTATIC = 0xb2;
+        static final int GETFIELD = 0xb4;
+        static final int PUTFIELD = 0xb5;
+        static final int INVOKEVIRTUAL = 0xb6;
+        static final int INVOKESPECIAL = 0xb7;
+        static final int INVOKESTATIC = 0xb8;
+        static final int INVOKEINTERFACE = 0xb9;
+        static final int ANEWARRAY = 0xbd;
+        static final int CHECKCAST = 0xc0;
+        static final int WIDE = 0xc4;
+
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private final Bytes code = new Bytes();
+        private int stack = 0;
+        private int maxStack = 0;
+        private int maxLocals;
+
+        private Code(int access, String name, String descriptor){
+            this.access = access;
+            this.name = utf8(name);
+            this.descriptor = utf8(descriptor);
+            // `this` plus the arguments
+            this.maxLocals = 1 + argumentSlots(descriptor);
+        }
+
+        void op(int opcode, int stackDelta){
+            code.u1(opcode);
+            adjust(stackDelta);
+        }
+        void pushInt(int value){
+            if(value >= -1 && value <= 5){
+                code.u1(0x03 + value);
+            }else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE){
+                code.u1(0x10);
+                code.u1(value);
+            }else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE){
+                code.u1(0x11);
+                code.u2(value);
+            }else{
+                throw new TooLarge("Constant too large.");
+            }
+            adjust(1);
+        }
+        void load(int local){
+            local(ALOAD, 0x2a, local);
+            adjust(1);
+        }
+        void store(int local){
+            local(ASTORE, 0x4b, local);
+            adjust(-1);
+        }
+        // a double takes two locals and two stack slots
+        void loadDouble(int local){
+            local(DLOAD, 0x26, local);
+            maxLocals = Math.max(maxLocals, local+2);
+            adjust(2);
+        }
+        void storeDouble(int local){
+            local(DSTORE, 0x47, local);
+            maxLocals = Math.max(maxLocals, local+2);
+            adjust(-2);
+        }
+        private void local(int opcode, int shortForm, int local){
+            maxLocals = Math.max(maxLocals, local+1);
+            if(local <= 3){
+                code.u1(shortForm + local);
+            }else if(local <= 0xff){
+                code.u1(opcode);
+                code.u1(local);
+            }else{
+                code.u1(WIDE);
+                code.u1(opcode);
+                code.u2(local);
+            }
+        }
+        void field(int opcode, String owner, String fieldName, String fieldDescriptor){
+            code.u1(opcode);
+            code.u2(fieldRef(owner, fieldName, fieldDescriptor));
+            int size = 1;
+            switch(opcode){
+                case GETSTATIC: adjust(size); break;
+                case GETFIELD:  adjust(size-1); break;
+                case PUTFIELD:  adjust(-size-1); break;
+                default: throw new IllegalArgumentException("field opcode "+opcode);
+            }
+        }
+        void invoke(int opcode, String owner, String methodName, String methodDescriptor){
+            int arguments = argumentSlots(methodDescriptor);
+            int result = methodDescriptor.endsWith(")V") ? 0
+                : methodDescriptor.endsWith(")D") || methodDescriptor.endsWith(")J") ? 2 : 1;
+            code.u1(opcode);
+            if(opcode == INVOKEINTERFACE){
+                code.u2(interfaceMethodRef(owner, methodName, methodDescriptor));
+                code.u1(arguments+1);
+                code.u1(0);
+            }else{
+                code.u2(methodRef(owner, methodName, methodDescriptor));
+            }
+            adjust(result - arguments - (opcode == INVOKESTATIC ? 0 : 1));
+        }
+        void type(int opcode, String className){
+            code.u1(opcode);
+            code.u2(classRef(className));
+        }
+        void jump(int opcode, Label label){
+            int position = code.size();
+            code.u1(opcode);
+            code.u2(0);
+            if(opcode != GOTO) adjust(-1);
+            if(label.stack < 0) label.stack = stack;
+            if(label.position >= 0) patch(position, label.position);
+            else label.fixups.add(position);
+        }
+        // after a goto or return the depth is whatever the jumps into label left
+        void bind(Label label){
+            label.position = code.size();
+            if(label.stack >= 0) stack = label.stack;
+            else label.stack = stack;
+            for(int position : label.fixups) patch(position, label.position);
+        }
+        int allocateLocal(){
+            return maxLocals++;
+        }
+        int allocateDoubleLocal(){
+            int local = maxLocals;
+            maxLocals += 2;
+            return local;
+        }
+        int size(){
+            return code.size();
+        }
+
+        void end(){
+            methods.u2(access);
+            methods.u2(name);
+            methods.u2(descriptor);
+            methods.u2(1);
+            methods.u2(utf8("Code"));
+            if(code.size() > 0xffff) throw new TooLarge("Method too large.");
+            methods.u4(12 + code.size());
+            methods.u2(maxStack);
+            methods.u2(maxLocals);
+            methods.u4(code.size());
+            methods.bytes(code);
+            methods.u2(0);
+            methods.u2(0);
+            methodCount++;
+        }
+
+        private void patch(int position, int target){
+            int offset = target - position;
+            if(offset < Short.MIN_VALUE || offset > Short.MAX_VALUE){
+                throw new TooLarge("Jump too far.");
+            }
+            code.set(position+1, offset >> 8);
+            code.set(position+2, offset);
+        }
+        private void adjust(int delta){
+            stack += delta;
+            maxStack = Math.max(maxStack, stack);
+        }
+    }
+
+    // number of argument slots in a method descriptor
+    private static int argumentSlots(String descriptor){
+        int slots = 0;
+        int i = 1;
+        while(descriptor.charAt(i) != ')'){
+            char c = descriptor.charAt(i);
+            boolean array = false;
+            while(c == '['){
+                array = true;
+                c = descriptor.charAt(++i);
+            }
+            if(c == 'L') i = descriptor.indexOf(';', i);
+            slots += !array && (c == 'J' || c == 'D') ? 2 : 1;
+            i++;
+        }
+        return slots;
+    }
+
+    private static class Bytes{
+        private byte[] data = new byte[256];
+        private int size = 0;
+
+        void u1(int value){
+            ensure(1);
+            data[size++] = (byte)value;
+        }
+        void u2(int value){
+            ensure(2);
+            data[size++] = (byte)(value >> 8);
+            data[size++] = (byte)value;
+        }
+        void u4(int value){
+            u2(value >>> 16);
+            u2(value);
+        }
+        void raw(byte[] bytes){
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, data, size, bytes.length);
+            size += bytes.length;
+        }
+        void bytes(Bytes other){
+            ensure(other.size);
+            System.arraycopy(other.data, 0, data, size, other.size);
+            size += other.size;
+        }
+        void set(int position, int value){
+            data[position] = (byte)value;
+        }
+        int size(){
+            return size;
+        }
+        byte[] toByteArray(){
+            return Arrays.copyOf(data, size);
+        }
+        private void ensure(int extra){
+            if(size + extra > data.length){
+                data = Arrays.copyOf(data, Math.max(data.length*2, size+extra));
+            }
+        }
+    }
+}
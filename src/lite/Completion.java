@@ -0,0 +1,10 @@
+package lite;
+
+// How a statement finished. Break and return are handed back up through
+// execute() instead of being thrown, the value of a return waits in the
+// Interpreter until LiteFunction.call takes it.
+enum Completion{
+    NORMAL,
+    BREAK,
+    RETURN
+}
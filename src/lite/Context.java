@@ -0,0 +1,30 @@
+package lite;
+
+// An isolated instance of the language, made by Engine.newContext: its own
+// globals, natives included, its own output and its own error sink. A
+// Context runs one Script at a time, separate Contexts can run at the
+// same time on different threads, sharing their Scripts.
+public final class Context {
+    private final Interpreter interpreter;
+
+    Context(Interpreter interpreter){
+        this.interpreter = interpreter;
+    }
+
+    // false when the script stopped on a runtime error, which has been
+    // reported to the Context's sink. Globals the script defines are
+    // still there for the next one run in the same Context.
+    public boolean run(Script script){
+        return interpreter.interpret(script.statements, script.names);
+    }
+
+    // value is a number, String, Boolean, null or a LiteCallable
+    public void define(String name, Object value){
+        interpreter.globals.define(name, value(value));
+    }
+    // every number in the language is a Double
+    private static Object value(Object value){
+        if(value instanceof Number && !(value instanceof Double)) return ((Number)value).doubleValue();
+        return value;
+    }
+}
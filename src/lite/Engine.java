@@ -0,0 +1,46 @@
+package lite;
+
+import java.io.PrintStream;
+import java.util.List;
+
+// Entry point for programs embedding jlite. An Engine compiles sources
+// into Scripts and makes Contexts to run them in. It keeps no state of its
+// own past its settings, so one Engine can serve any number of threads.
+//
+//   Engine engine = new Engine();
+//   Script script = engine.compile(source, errors);
+//   if(script != null) engine.newContext(errors, System.out).run(script);
+public final class Engine {
+    private final int optimizationLevel;
+
+    public Engine(){
+        this(1);
+    }
+    // the command line's -O0, -O1 or -O2
+    public Engine(int optimizationLevel){
+        if(optimizationLevel < 0 || optimizationLevel > 2){
+            throw new IllegalArgumentException("Optimization level must be 0, 1 or 2.");
+        }
+        this.optimizationLevel = optimizationLevel;
+    }
+
+    // parsed, optimized and resolved, null after a syntax error, which
+    // has been reported to errors
+    public Script compile(String source, ErrorSink errors){
+        Parser parser = new Parser(new Scanner(source, errors));
+        List<Stmt> statements = parser.parse();
+        if(parser.hadError()) return null;
+
+        // the Optimizer only borrows the Interpreter's operator rules
+        Interpreter rules = new Interpreter(errors, System.out);
+        statements = new Optimizer(rules, optimizationLevel).optimize(statements);
+        Resolver resolver = new Resolver();
+        resolver.resolve(statements);
+        return new Script(statements, resolver.names());
+    }
+
+    // fresh globals holding only the natives, print writes to out
+    public Context newContext(ErrorSink errors, PrintStream out){
+        return new Context(new Interpreter(errors, out));
+    }
+}
@@ -1,41 +1,84 @@
 package lite;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.function.BiConsumer;
 
 public class Environment {
     final Environment enclosing;
-    private final Map<String,Object> values = new HashMap<>();
+    // Only the Environment made for the globals, and the top level of each
+    // run over them, hold the store, where a top-level declaration defines
+    // its name. Other code reaches a global through the link of the
+    // Environment it runs in, by the index the Resolver gave its name, and
+    // any other variable by the slot the Resolver assigned to it.
+    private final Globals globals;
+    final Globals.Link link;
+    private final Object[] slots;
 
     Environment(){
         this.enclosing = null;
+        this.globals = new Globals();
+        this.link = null;
+        this.slots = null;
     }
-    Environment(Environment enclosing){
+    // the top level of a run of code compiled with names
+    Environment(Environment globals, Globals.Names names){
+        this.enclosing = null;
+        this.globals = globals.globals;
+        this.link = this.globals.link(names);
+        this.slots = null;
+    }
+    Environment(Environment enclosing, int size){
         this.enclosing = enclosing;
+        this.globals = null;
+        this.link = enclosing.link;
+        this.slots = new Object[size];
+    }
+    // a closure: the Cells a function captured, and nothing around them
+    // but the globals of the code that made it
+    Environment(Object[] cells, Globals.Link link){
+        this.enclosing = null;
+        this.globals = null;
+        this.link = link;
+        this.slots = cells;
     }
 
-    Object get(Token name){
-        if(values.containsKey(name.lexeme)){
-            return values.get(name.lexeme);
-        }
-        if(enclosing != null) return enclosing.get(name);
-        throw new RuntimeError(name,"Undefined variable '"+name.lexeme+"'.");
+    Object getGlobal(int index, Token name){
+        return link.get(index, name);
     }
 
     void define(String name, Object value){
-        values.put(name,value);
+        globals.define(name, value);
     }
 
-    void assign(Token name, Object value){
-        if(values.containsKey(name.lexeme)){
-            values.put(name.lexeme,value);
-            return;
-        }
+    void assignGlobal(int index, Token name, Object value){
+        link.assign(index, name, value);
+    }
+
+    double atomicAdd(String name, double delta){
+        return globals.add(name, delta);
+    }
+
+    // hands the globals (the natives, mostly) over to another runtime
+    void forEachGlobal(BiConsumer<String,Object> action){
+        globals.forEach(action);
+    }
+
+    Object getAt(int depth, int slot){
+        return ancestor(depth).slots[slot];
+    }
+
+    void defineAt(int slot, Object value){
+        slots[slot] = value;
+    }
+
+    void assignAt(int depth, int slot, Object value){
+        ancestor(depth).slots[slot] = value;
+    }
 
-        if(enclosing != null){
-            enclosing.assign(name, value);
-            return;
+    private Environment ancestor(int depth){
+        Environment environment = this;
+        for(int i = 0 ; i < depth ; ++i){
+            environment = environment.enclosing;
         }
-        throw new RuntimeError(name, "Undefined variable '"+name.lexeme+"'.");
+        return environment;
     }
 }
@@ -0,0 +1,38 @@
+package lite;
+
+import java.io.PrintStream;
+
+// Prints errors the way the command line always has and remembers
+// whether there were any, for the exit code.
+public class ErrorPrinter implements ErrorSink {
+    private final PrintStream err;
+    private volatile boolean hadError = false;
+    private volatile boolean hadRuntimeError = false;
+
+    public ErrorPrinter(PrintStream err){
+        this.err = err;
+    }
+
+    @Override
+    public void syntaxError(int line, String where, String message){
+        err.println("[line "+line+"]:  Error "+where+": "+message);
+        hadError = true;
+    }
+    @Override
+    public void runtimeError(int line, String message){
+        err.println(message+"\n[line "+line+"]");
+        hadRuntimeError = true;
+    }
+
+    public boolean hadError(){
+        return hadError;
+    }
+    public boolean hadRuntimeError(){
+        return hadRuntimeError;
+    }
+    // the prompt starts over after every line
+    void reset(){
+        hadError = false;
+        hadRuntimeError = false;
+    }
+}
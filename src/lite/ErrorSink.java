@@ -0,0 +1,11 @@
+package lite;
+
+// Where the Scanner, Parser and executors report the errors they find,
+// one per compilation or Context instead of the process-wide flags the
+// command line used to keep. Errors are reported, never thrown, so a
+// sink sees every syntax error in a source and not just the first.
+public interface ErrorSink {
+    // where is "at 'lexeme'", "at end" or " " when there is no token
+    void syntaxError(int line, String where, String message);
+    void runtimeError(int line, String message);
+}
@@ -30,6 +30,7 @@ abstract class Expr{
 		final Expr left;
 		final Token operator;
 		final Expr right;
+		byte specialized;
 		@Override
 		<T> T accept(Visitor<T> visitor){
 			return visitor.visitBinaryExpr(this);
@@ -44,6 +45,7 @@ abstract class Expr{
 		final Expr callee;
 		final Token paren;
 		final List<Expr> arguments;
+		Stmt.Function cached;
 		@Override
 		<T> T accept(Visitor<T> visitor){
 			return visitor.visitCallExpr(this);
@@ -70,6 +72,9 @@ abstract class Expr{
 		}
 		final Token name;
 		final Expr value;
+		int depth=-1;
+		int slot=-1;
+		boolean cell;
 		@Override
 		<T> T accept(Visitor<T> visitor){
 			return visitor.visitAssignExpr(this);
@@ -82,6 +87,7 @@ abstract class Expr{
 		}
 		final Token operator;
 		final Expr right;
+		byte specialized;
 		@Override
 		<T> T accept(Visitor<T> visitor){
 			return visitor.visitUnaryExpr(this);
@@ -92,6 +98,9 @@ abstract class Expr{
 			this.name=name;
 		}
 		final Token name;
+		int depth=-1;
+		int slot=-1;
+		boolean cell;
 		@Override
 		<T> T accept(Visitor<T> visitor){
 			return visitor.visitVariableExpr(this);
@@ -0,0 +1,35 @@
+package lite;
+
+import java.util.List;
+
+// A function declared in a FlatTree, called through the FlatInterpreter
+// for the calling Interpreter
+class FlatFunction implements LiteCallable {
+    final FlatInterpreter runner;
+    // the FUNCTION node
+    final int node;
+    final Environment closure;
+
+    FlatFunction(FlatInterpreter runner, int node, Environment closure){
+        this.runner = runner;
+        this.node = node;
+        this.closure = closure;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments){
+        return runner.on(interpreter).call(this, arguments.toArray());
+    }
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments){
+        return runner.on(interpreter).call(this, arguments);
+    }
+    @Override
+    public int arity(){
+        return runner.arity(node);
+    }
+    @Override
+    public String toString(){
+        return "<function "+runner.name(node)+">";
+    }
+}
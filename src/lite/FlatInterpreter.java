@@ -0,0 +1,335 @@
+package lite;
+
+import static lite.FlatTree.*;
+
+// Runs a FlatTree by walking node indices instead of visiting objects.
+// Globals, natives and the rules of every operator are the Interpreter's,
+// so a program behaves the same on both, down to the error messages.
+class FlatInterpreter {
+    private static final TokenType[] TYPES = TokenType.values();
+    // returned in place of a value when a function ends in a call to
+    // another FlatFunction, call() then runs it without nesting
+    private static final Object TAIL_CALL = new Object();
+
+    private final Interpreter interpreter;
+    private final int[] code;
+    private final Object[] constants;
+    private final int program;
+    private Environment environment;
+    private Object returnValue = null;
+    private FlatFunction tailCallee = null;
+    private Object[] tailArguments = null;
+
+    FlatInterpreter(Interpreter interpreter, FlatTree tree){
+        this(interpreter, tree.code, tree.constants, tree.program,
+            new Environment(interpreter.globals, tree.names));
+    }
+    private FlatInterpreter(Interpreter interpreter, int[] code, Object[] constants, int program,
+            Environment environment){
+        this.interpreter = interpreter;
+        this.code = code;
+        this.constants = constants;
+        this.program = program;
+        this.environment = environment;
+        interpreter.flat = this;
+    }
+
+    // The runner of the same tree for interpreter. A spawned task calls
+    // functions with an Interpreter of its own, and so gets its own runner
+    // rather than sharing this one's state with the spawning thread.
+    FlatInterpreter on(Interpreter interpreter){
+        if(interpreter == this.interpreter) return this;
+        FlatInterpreter runner = interpreter.flat;
+        if(runner != null && runner.code == code) return runner;
+        // only ever runs functions, each in the globals of its closure
+        return new FlatInterpreter(interpreter, code, constants, program, interpreter.globals);
+    }
+
+    void interpret(){
+        try{
+            for(int i = 1 ; i <= code[program] ; ++i){
+                if(execute(code[program+i]) != Completion.NORMAL) break;
+            }
+        }catch(RuntimeError error){
+            interpreter.errors.runtimeError(error.token.line, error.getMessage());
+        }
+    }
+
+    // runs function with the trampoline LiteFunction uses for tail calls
+    Object call(FlatFunction function, Object[] arguments){
+        Object result = invoke(function, arguments);
+        while(result == TAIL_CALL){
+            FlatFunction callee = tailCallee;
+            Object[] calleeArguments = tailArguments;
+            tailCallee = null;
+            tailArguments = null;
+            result = invoke(callee, calleeArguments);
+        }
+        return result;
+    }
+    private Object invoke(FlatFunction function, Object[] arguments){
+        int node = function.node;
+        Environment frame = new Environment(function.closure, code[node+5]);
+        for(int i = 0 ; i < arguments.length ; ++i){
+            frame.defineAt(i, arguments[i]);
+        }
+        int parameters = code[node+8];
+        if(parameters >= 0){
+            for(int i = 1 ; i <= code[parameters] ; ++i){
+                int parameter = code[parameters+i];
+                frame.defineAt(parameter, new Cell(arguments[parameter]));
+            }
+        }
+        if(code[node+9] >= 0) hoist(code[node+9], frame);
+        if(executeList(node+10, frame) == Completion.RETURN){
+            Object value = returnValue;
+            returnValue = null;
+            return value;
+        }
+        return null;
+    }
+    int arity(int function){
+        return code[function+4];
+    }
+    String name(int function){
+        return token(function+2).lexeme;
+    }
+
+    private Completion execute(int node){
+        switch(code[node]){
+            case EXPRESSION:
+                evaluate(code[node+2]);
+                return Completion.NORMAL;
+            case PRINT:
+                interpreter.out.println(interpreter.stringify(evaluate(code[node+2])));
+                return Completion.NORMAL;
+            case VAR: {
+                int initializer = code[node+4];
+                Object value = initializer < 0 ? null : evaluate(initializer);
+                Cell cell = cell(node);
+                if(cell != null) cell.value = value;
+                else define(node, value);
+                return Completion.NORMAL;
+            }
+            case BLOCK: {
+                Environment frame = code[node+2] == 0 ? environment : new Environment(environment, code[node+2]);
+                if(code[node+3] >= 0) hoist(code[node+3], frame);
+                return executeList(node+4, frame);
+            }
+            case IF:
+                if(interpreter.isTruthy(evaluate(code[node+2]))) return execute(code[node+3]);
+                if(code[node+4] >= 0) return execute(code[node+4]);
+                return Completion.NORMAL;
+            case WHILE: {
+                int condition = code[node+2];
+                while(condition < 0 || interpreter.isTruthy(evaluate(condition))){
+                    Completion completion = execute(code[node+3]);
+                    if(completion == Completion.BREAK) break;
+                    if(completion == Completion.RETURN) return completion;
+                }
+                return Completion.NORMAL;
+            }
+            case FOR_RANGE:
+                return forRange(node);
+            case FUNCTION: {
+                // made before the closure, which may capture the function itself
+                Cell cell = cell(node);
+                FlatFunction function = new FlatFunction(this, node, closure(code[node+7]));
+                if(cell != null) cell.value = function;
+                else define(node, function);
+                return Completion.NORMAL;
+            }
+            case RETURN: {
+                int value = code[node+2];
+                if(code[node+3] != 0) returnValue = tailCall(value);
+                else returnValue = value < 0 ? null : evaluate(value);
+                return Completion.RETURN;
+            }
+            case BREAK:
+                return Completion.BREAK;
+            default:
+                throw new IllegalStateException("Not a statement: "+code[node]);
+        }
+    }
+    // same as Interpreter.visitForRangeStmt
+    private Completion forRange(int node){
+        Token name = token(node+2);
+        double start = Interpreter.rangeBound(name, evaluate(code[node+6]));
+        double end = Interpreter.rangeBound(name, evaluate(code[node+7]));
+        double step = code[node+8] < 0 ? 1 : Interpreter.rangeStep(name, evaluate(code[node+8]));
+        int slot = code[node+3];
+        boolean cell = code[node+5] != 0;
+        int body = code[node+9];
+        Environment frame = code[node+4] == 0 ? environment : new Environment(environment, code[node+4]);
+        Environment previous = this.environment;
+        try{
+            this.environment = frame;
+            for(double i = start ; Interpreter.inRange(i, end, step) ; i += step){
+                frame.defineAt(slot, cell ? new Cell(i) : (Object)i);
+                Completion completion = execute(body);
+                if(completion == Completion.BREAK) break;
+                if(completion == Completion.RETURN) return completion;
+            }
+            return Completion.NORMAL;
+        }finally{
+            this.environment = previous;
+        }
+    }
+    // the statements listed at list, run in environment
+    private Completion executeList(int list, Environment environment){
+        Environment previous = this.environment;
+        try{
+            this.environment = environment;
+            for(int i = 1 ; i <= code[list] ; ++i){
+                Completion completion = execute(code[list+i]);
+                if(completion != Completion.NORMAL) return completion;
+            }
+            return Completion.NORMAL;
+        }finally{
+            this.environment = previous;
+        }
+    }
+    // same as Interpreter.hoist, for the hoisted list at list
+    private void hoist(int list, Environment frame){
+        for(int i = list+1 ; i <= list+code[list] ; i += 4){
+            frame.defineAt(code[i], Cell.hoisted(frame, code[i+1], code[i+2], code[i+3]));
+        }
+    }
+    // VAR and FUNCTION both keep their name and slot after the line
+    private void define(int node, Object value){
+        int slot = code[node+3];
+        if(slot < 0) environment.define(token(node+2).lexeme, value);
+        else environment.defineAt(slot, value);
+    }
+    // the Cell a VAR or FUNCTION declares, or null when it declares none
+    private Cell cell(int node){
+        int kind = code[node + (code[node] == VAR ? 5 : 6)];
+        if(kind == 0) return null;
+        if(kind == 2) return (Cell)environment.getAt(0, code[node+3]);
+        Cell cell = new Cell(null);
+        environment.defineAt(code[node+3], cell);
+        return cell;
+    }
+    private Environment closure(int captures){
+        int count = code[captures];
+        if(count == 0) return new Environment(null, environment.link);
+        Object[] cells = new Object[count];
+        for(int i = 0 ; i < count ; ++i){
+            cells[i] = environment.getAt(code[captures+1+2*i], code[captures+2+2*i]);
+        }
+        return new Environment(cells, environment.link);
+    }
+
+    private Object evaluate(int node){
+        switch(code[node]){
+            case LITERAL:
+                return constants[code[node+2]];
+            case GET_GLOBAL:
+                return environment.getGlobal(code[node+3], token(node+2));
+            case SET_GLOBAL: {
+                Object value = evaluate(code[node+4]);
+                environment.assignGlobal(code[node+3], token(node+2), value);
+                return value;
+            }
+            case GET_LOCAL:
+                return environment.getAt(code[node+2], code[node+3]);
+            case GET_CELL:
+                return ((Cell)environment.getAt(code[node+2], code[node+3])).get();
+            case SET_CELL: {
+                Object value = evaluate(code[node+4]);
+                ((Cell)environment.getAt(code[node+2], code[node+3])).set(value);
+                return value;
+            }
+            case SET_LOCAL: {
+                Object value = evaluate(code[node+4]);
+                environment.assignAt(code[node+2], code[node+3], value);
+                return value;
+            }
+            case BINARY:
+                return binary(node);
+            case UNARY:
+                return interpreter.unary(operator(node), evaluate(code[node+3]));
+            case TERNARY:
+                if(interpreter.isTruthy(evaluate(code[node+2]))) return evaluate(code[node+3]);
+                return evaluate(code[node+4]);
+            case CALL: {
+                Object callee = evaluate(code[node+2]);
+                Object[] arguments = arguments(node);
+                LiteCallable function = callable(node, callee);
+                try{
+                    return function.call(interpreter, arguments);
+                }catch(RuntimeError error){
+                    throw RuntimeError.at(paren(node), error);
+                }
+            }
+            default:
+                throw new IllegalStateException("Not an expression: "+code[node]);
+        }
+    }
+    private Object binary(int node){
+        Object left = evaluate(code[node+3]);
+        Object right = evaluate(code[node+4]);
+        if(left instanceof Double && right instanceof Double){
+            double a = (double)left;
+            double b = (double)right;
+            switch(TYPES[code[node+2]]){
+                case PLUS:          return a + b;
+                case MINUS:         return a - b;
+                case STAR:          return a * b;
+                case SLASH:         return a / b;
+                case GREATER:       return a > b;
+                case GREATER_EQUAL: return a >= b;
+                case LESS:          return a < b;
+                case LESS_EQUAL:    return a <= b;
+                default: // the rest are left to the Interpreter
+            }
+        }
+        return interpreter.binary(operator(node), left, right);
+    }
+    private Object tailCall(int call){
+        Object callee = evaluate(code[call+2]);
+        Object[] arguments = arguments(call);
+        LiteCallable function = callable(call, callee);
+        if(function instanceof FlatFunction && ((FlatFunction)function).runner.code == code){
+            tailCallee = (FlatFunction)function;
+            tailArguments = arguments;
+            return TAIL_CALL;
+        }
+        try{
+            return function.call(interpreter, arguments);
+        }catch(RuntimeError error){
+            throw RuntimeError.at(paren(call), error);
+        }
+    }
+    private Object[] arguments(int call){
+        int list = call+3;
+        Object[] arguments = new Object[code[list]];
+        for(int i = 0 ; i < arguments.length ; ++i){
+            arguments[i] = evaluate(code[list+1+i]);
+        }
+        return arguments;
+    }
+    private LiteCallable callable(int call, Object callee){
+        if(!(callee instanceof LiteCallable)){
+            throw new RuntimeError(paren(call),
+                "Can only call functions and classes.");
+        }
+        LiteCallable function = (LiteCallable)callee;
+        int count = code[call+3];
+        if(count != function.arity()){
+            throw new RuntimeError(paren(call),
+                "Expected "+function.arity()+" arguments but got "+count+".");
+        }
+        return function;
+    }
+    private Token token(int operand){
+        return (Token)constants[code[operand]];
+    }
+    // what the Interpreter's operator rules take, for a BINARY or UNARY node
+    private Token operator(int node){
+        return new Token(TYPES[code[node+2]], "", null, code[node+1]);
+    }
+    private Token paren(int call){
+        return new Token(TokenType.RIGHT_PAREN, ")", null, code[call+1]);
+    }
+}
@@ -0,0 +1,78 @@
+package lite;
+
+// A resolved program with every node packed into one int array rather than
+// an object each, children before their parents. A node is its opcode and
+// source line followed by its operands, which are node indices, indices
+// into constants, resolved slots and, for lists, a count and then that
+// many node indices. An absent child is -1. Built by Flattener and run by
+// FlatInterpreter.
+//
+//   LITERAL        value
+//   GET_GLOBAL     name global          SET_GLOBAL  name global value
+//   GET_LOCAL      depth slot           SET_LOCAL   depth slot value
+//   GET_CELL       depth slot           SET_CELL    depth slot value
+//   BINARY         operator left right
+//   UNARY          operator right
+//   TERNARY        condition middle right
+//   CALL           callee count arguments...
+//   EXPRESSION     expression           PRINT       expression
+//   VAR            name slot initializer cell
+//   BLOCK          slots hoisted count statements...
+//   IF             condition then else
+//   WHILE          condition body       (condition -1 loops forever)
+//   FOR_RANGE      name slot slots cell start end step body
+//   FUNCTION       name slot arity slots cell captures parameters
+//                  hoisted count statements...
+//   RETURN         value tailCall       BREAK
+//
+// value and name index constants, names being their Tokens. operator is a
+// TokenType ordinal, the Token for an error message is made from it and
+// the line when needed. global is the index of the name in names, and a
+// slot of -1 means a global. A BLOCK or FOR_RANGE
+// of 0 slots runs in the environment around it, and a FOR_RANGE without a
+// step has -1 there and counts by 1. The *_CELL nodes reach a captured
+// variable through its Cell, and a declaration's cell is 0 for a plain
+// slot, 1 to put a new Cell in it or 2 to reuse the Cell an earlier
+// declaration of the same name left there. A function's captures is the
+// index of a count and that many (depth, slot) pairs the Interpreter would
+// read its Cells from, parameters that of a count and the indices of the
+// parameters that live in Cells, or -1 when there are none. hoisted, in
+// a BLOCK or FUNCTION, is likewise a count and the Stmt's hoisted entries,
+// four ints for each slot that gets a new Cell as it is entered, or -1.
+final class FlatTree {
+    static final int LITERAL    = 0;
+    static final int GET_GLOBAL = 1;
+    static final int SET_GLOBAL = 2;
+    static final int GET_LOCAL  = 3;
+    static final int SET_LOCAL  = 4;
+    static final int BINARY     = 5;
+    static final int UNARY      = 6;
+    static final int TERNARY    = 7;
+    static final int CALL       = 8;
+    static final int EXPRESSION = 9;
+    static final int PRINT      = 10;
+    static final int VAR        = 11;
+    static final int BLOCK      = 12;
+    static final int IF         = 13;
+    static final int WHILE      = 14;
+    static final int FUNCTION   = 15;
+    static final int RETURN     = 16;
+    static final int BREAK      = 17;
+    static final int GET_CELL   = 18;
+    static final int SET_CELL   = 19;
+    static final int FOR_RANGE  = 20;
+
+    final int[] code;
+    final Object[] constants;
+    // index of the top level statement list: a count and the statements
+    final int program;
+    // the globals the tree refers to
+    final Globals.Names names;
+
+    FlatTree(int[] code, Object[] constants, int program, Globals.Names names){
+        this.code = code;
+        this.constants = constants;
+        this.program = program;
+        this.names = names;
+    }
+}
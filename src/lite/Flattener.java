@@ -0,0 +1,295 @@
+package lite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static lite.FlatTree.*;
+
+// Converts resolved statements into a FlatTree. Each visit writes the
+// node's children first and then the node itself, and returns where the
+// node starts. Groupings leave no node of their own.
+class Flattener implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+    private int[] code = new int[1024];
+    private int size = 0;
+    private final List<Object> constants = new ArrayList<>();
+    // literal values are stored once however often they appear
+    private final Map<Object,Integer> literals = new HashMap<>();
+    // nodes without a token of their own take the line of the last one seen
+    private int line = 1;
+
+    FlatTree flatten(List<Stmt> statements, Globals.Names names){
+        int[] children = flattenAll(statements);
+        int program = size;
+        list(children);
+        return new FlatTree(Arrays.copyOf(code, size), constants.toArray(), program, names);
+    }
+
+    @Override
+    public Integer visitBlockStmt(Stmt.Block stmt){
+        int[] children = flattenAll(stmt.statements);
+        int hoisted = slots(stmt.hoisted);
+        int node = node(BLOCK);
+        emit(stmt.slots);
+        emit(hoisted);
+        list(children);
+        return node;
+    }
+
+    @Override
+    public Integer visitExpressionStmt(Stmt.Expression stmt){
+        int expression = flatten(stmt.expression);
+        int node = node(EXPRESSION);
+        emit(expression);
+        return node;
+    }
+
+    @Override
+    public Integer visitFunctionStmt(Stmt.Function stmt){
+        int[] children = flattenAll(LazyBody.force(stmt));
+        int captures = size;
+        emit(stmt.captures.length/2);
+        for(int capture : stmt.captures) emit(capture);
+        int parameters = -1;
+        if(stmt.cells != null){
+            parameters = size;
+            int count = 0;
+            for(boolean cell : stmt.cells) if(cell) count++;
+            emit(count);
+            for(int i = 0 ; i < stmt.cells.length ; ++i) if(stmt.cells[i]) emit(i);
+        }
+        int hoisted = slots(stmt.hoisted);
+        line = stmt.name.line;
+        int node = node(FUNCTION);
+        emit(constant(stmt.name));
+        emit(stmt.slot);
+        emit(stmt.params.size());
+        emit(stmt.slots);
+        emit(cell(stmt.cell, stmt.redeclaration));
+        emit(captures);
+        emit(parameters);
+        emit(hoisted);
+        list(children);
+        return node;
+    }
+
+    @Override
+    public Integer visitIfStmt(Stmt.If stmt){
+        int condition = flatten(stmt.condition);
+        int thenBranch = flatten(stmt.thenBranch);
+        int elseBranch = stmt.elseBranch == null ? -1 : flatten(stmt.elseBranch);
+        int node = node(IF);
+        emit(condition);
+        emit(thenBranch);
+        emit(elseBranch);
+        return node;
+    }
+
+    @Override
+    public Integer visitPrintStmt(Stmt.Print stmt){
+        int expression = flatten(stmt.expression);
+        int node = node(PRINT);
+        emit(expression);
+        return node;
+    }
+
+    @Override
+    public Integer visitVarStmt(Stmt.Var stmt){
+        int initializer = stmt.initializer == null ? -1 : flatten(stmt.initializer);
+        line = stmt.name.line;
+        int node = node(VAR);
+        emit(constant(stmt.name));
+        emit(stmt.slot);
+        emit(initializer);
+        emit(cell(stmt.cell, stmt.redeclaration));
+        return node;
+    }
+
+    @Override
+    public Integer visitWhileStmt(Stmt.While stmt){
+        int condition = Optimizer.alwaysTrue(stmt.condition) ? -1 : flatten(stmt.condition);
+        int body = flatten(stmt.body);
+        int node = node(WHILE);
+        emit(condition);
+        emit(body);
+        return node;
+    }
+
+    @Override
+    public Integer visitForRangeStmt(Stmt.ForRange stmt){
+        int start = flatten(stmt.start);
+        int end = flatten(stmt.end);
+        int step = stmt.step == null ? -1 : flatten(stmt.step);
+        int body = flatten(stmt.body);
+        line = stmt.name.line;
+        int node = node(FOR_RANGE);
+        emit(constant(stmt.name));
+        emit(stmt.slot);
+        emit(stmt.slots);
+        emit(stmt.cell ? 1 : 0);
+        emit(start);
+        emit(end);
+        emit(step);
+        emit(body);
+        return node;
+    }
+
+    @Override
+    public Integer visitReturnStmt(Stmt.Return stmt){
+        int value = stmt.value == null ? -1 : flatten(stmt.value);
+        line = stmt.keyword.line;
+        int node = node(RETURN);
+        emit(value);
+        emit(stmt.tailCall ? 1 : 0);
+        return node;
+    }
+
+    @Override
+    public Integer visitBreakStmt(Stmt.Break stmt){
+        return node(BREAK);
+    }
+
+    @Override
+    public Integer visitBinaryExpr(Expr.Binary expr){
+        int left = flatten(expr.left);
+        int right = flatten(expr.right);
+        line = expr.operator.line;
+        int node = node(BINARY);
+        emit(expr.operator.type.ordinal());
+        emit(left);
+        emit(right);
+        return node;
+    }
+
+    @Override
+    public Integer visitCallExpr(Expr.Call expr){
+        int callee = flatten(expr.callee);
+        int[] arguments = new int[expr.arguments.size()];
+        for(int i = 0 ; i < arguments.length ; ++i){
+            arguments[i] = flatten(expr.arguments.get(i));
+        }
+        line = expr.paren.line;
+        int node = node(CALL);
+        emit(callee);
+        list(arguments);
+        return node;
+    }
+
+    @Override
+    public Integer visitTernaryExpr(Expr.Ternary expr){
+        int condition = flatten(expr.left);
+        int middle = flatten(expr.middle);
+        int right = flatten(expr.right);
+        int node = node(TERNARY);
+        emit(condition);
+        emit(middle);
+        emit(right);
+        return node;
+    }
+
+    @Override
+    public Integer visitAssignExpr(Expr.Assign expr){
+        int value = flatten(expr.value);
+        line = expr.name.line;
+        if(expr.depth < 0){
+            int node = node(SET_GLOBAL);
+            emit(constant(expr.name));
+            emit(expr.slot);
+            emit(value);
+            return node;
+        }
+        int node = node(expr.cell ? SET_CELL : SET_LOCAL);
+        emit(expr.depth);
+        emit(expr.slot);
+        emit(value);
+        return node;
+    }
+
+    @Override
+    public Integer visitUnaryExpr(Expr.Unary expr){
+        int right = flatten(expr.right);
+        line = expr.operator.line;
+        int node = node(UNARY);
+        emit(expr.operator.type.ordinal());
+        emit(right);
+        return node;
+    }
+
+    @Override
+    public Integer visitVariableExpr(Expr.Variable expr){
+        line = expr.name.line;
+        if(expr.depth < 0){
+            int node = node(GET_GLOBAL);
+            emit(constant(expr.name));
+            emit(expr.slot);
+            return node;
+        }
+        int node = node(expr.cell ? GET_CELL : GET_LOCAL);
+        emit(expr.depth);
+        emit(expr.slot);
+        return node;
+    }
+
+    @Override
+    public Integer visitGroupingExpr(Expr.Grouping expr){
+        return flatten(expr.expression);
+    }
+
+    @Override
+    public Integer visitLiteralExpr(Expr.Literal expr){
+        int node = node(LITERAL);
+        Integer index = literals.get(expr.value);
+        if(index == null){
+            index = constant(expr.value);
+            literals.put(expr.value, index);
+        }
+        emit(index);
+        return node;
+    }
+
+    private int flatten(Stmt stmt){
+        return stmt.accept(this);
+    }
+    private int flatten(Expr expr){
+        return expr.accept(this);
+    }
+    private int[] flattenAll(List<Stmt> statements){
+        int[] nodes = new int[statements.size()];
+        for(int i = 0 ; i < nodes.length ; ++i){
+            nodes[i] = flatten(statements.get(i));
+        }
+        return nodes;
+    }
+    // starts a node, returning its index
+    private int node(int opcode){
+        int node = size;
+        emit(opcode);
+        emit(line);
+        return node;
+    }
+    // index of a count and the slots, or -1 for null
+    private int slots(int[] slots){
+        if(slots == null) return -1;
+        int list = size;
+        list(slots);
+        return list;
+    }
+    private void list(int[] nodes){
+        emit(nodes.length);
+        for(int node : nodes) emit(node);
+    }
+    private void emit(int value){
+        if(size == code.length) code = Arrays.copyOf(code, size*2);
+        code[size++] = value;
+    }
+    private static int cell(boolean cell, boolean redeclaration){
+        if(!cell) return 0;
+        return redeclaration ? 2 : 1;
+    }
+    private int constant(Object value){
+        constants.add(value);
+        return constants.size()-1;
+    }
+}
@@ -0,0 +1,157 @@
+package lite;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+// The global variables of an Interpreter and of every task it spawned,
+// one Global per name the store has seen, made by a definition or by the
+// first run of code referring to it. A store holds its own names and
+// nothing else, and goes away with its Context.
+//
+// The Resolver numbers the globals a compilation refers to in its Names.
+// A run links those numbers to this store's Globals as they are first
+// used, so a lookup is an array access rather than a hash, and the tree
+// shared by every Context holds nothing of any one of them.
+//
+// A Global is read with acquire and written with release semantics or a
+// compare-and-set, without locking. A new name goes into the map, which
+// locks only the bin it lands in.
+final class Globals {
+    private static final VarHandle VALUE;
+    private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Global[].class);
+    static{
+        try{
+            VALUE = MethodHandles.lookup().findVarHandle(Global.class, "value", Object.class);
+        }catch(ReflectiveOperationException error){
+            throw new ExceptionInInitializerError(error);
+        }
+    }
+    // in place of nil, a Global holding null is an undefined variable
+    private static final Object NIL = new Object();
+
+    // read and written through VALUE only
+    private static final class Global {
+        Object value = null;
+    }
+
+    // The names one compilation refers to as globals, numbered in the
+    // order the Resolver meets them. A lazily parsed body adds to them
+    // while the script runs, so they are locked, but only resolving and
+    // linking reads them.
+    static final class Names {
+        private final Map<String,Integer> indices = new HashMap<>();
+        private final List<String> names = new ArrayList<>();
+
+        synchronized int index(String name){
+            Integer index = indices.get(name);
+            if(index != null) return index;
+            indices.put(name, names.size());
+            names.add(name);
+            return names.size()-1;
+        }
+        synchronized String name(int index){
+            return names.get(index);
+        }
+        synchronized int size(){
+            return names.size();
+        }
+    }
+
+    // The Names of one compilation as seen by one run in this store,
+    // kept by the Environments of that run and of the functions it made.
+    final class Link {
+        private final Names names;
+        private volatile Global[] globals = new Global[0];
+
+        Link(Names names){
+            this.names = names;
+        }
+
+        Object get(int index, Token name){
+            Object value = VALUE.getAcquire(global(index));
+            if(value == null) throw undefined(name);
+            return value == NIL ? null : value;
+        }
+
+        String name(int index){
+            return names.name(index);
+        }
+
+        // globals are never removed, so one that is there stays there
+        void assign(int index, Token name, Object value){
+            Global global = global(index);
+            if(VALUE.getAcquire(global) == null) throw undefined(name);
+            VALUE.setRelease(global, value == null ? NIL : value);
+        }
+
+        private Global global(int index){
+            Global[] globals = this.globals;
+            if(index < globals.length){
+                Global global = (Global)SLOT.getAcquire(globals, index);
+                if(global != null) return global;
+            }
+            return link(index);
+        }
+        private synchronized Global link(int index){
+            Global[] globals = this.globals;
+            if(index >= globals.length){
+                Global[] larger = new Global[Math.max(index+1, names.size())];
+                System.arraycopy(globals, 0, larger, 0, globals.length);
+                this.globals = globals = larger;
+            }
+            Global global = globals[index];
+            if(global == null){
+                global = Globals.this.global(names.name(index));
+                SLOT.setRelease(globals, index, global);
+            }
+            return global;
+        }
+    }
+
+    private final Map<String,Global> globals = new ConcurrentHashMap<>();
+
+    Link link(Names names){
+        return new Link(names);
+    }
+
+    void define(String name, Object value){
+        VALUE.setRelease(global(name), value == null ? NIL : value);
+    }
+
+    // adds delta to the number in the global name in one step, for
+    // counters several tasks update at once, returning the sum
+    double add(String name, double delta){
+        Global global = globals.get(name);
+        while(true){
+            Object value = global == null ? null : VALUE.getAcquire(global);
+            if(value == null) throw new RuntimeError(null, "Undefined variable '"+name+"'.");
+            if(!(value instanceof Double)){
+                throw new RuntimeError(null, "Can only add to a global holding a number.");
+            }
+            Double sum = (Double)value + delta;
+            if(VALUE.compareAndSet(global, value, sum)) return sum;
+        }
+    }
+
+    void forEach(BiConsumer<String,Object> action){
+        globals.forEach((name, global) -> {
+            Object value = VALUE.getAcquire(global);
+            if(value != null) action.accept(name, value == NIL ? null : value);
+        });
+    }
+
+    private Global global(String name){
+        Global global = globals.get(name);
+        if(global != null) return global;
+        return globals.computeIfAbsent(name, key -> new Global());
+    }
+    private static RuntimeError undefined(Token name){
+        return new RuntimeError(name, "Undefined variable '"+name.lexeme+"'.");
+    }
+}
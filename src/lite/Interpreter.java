@@ -2,16 +2,45 @@ package lite;
 
 import lite.Expr.*;
 
+import java.io.PrintStream;
 import java.lang.Math;
 import java.util.List;
-import java.util.ArrayList;
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-
-    final Environment globals = new Environment();
-    private Environment environment = globals;
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Completion> {
+
+    // shared with every Interpreter running a task this one spawned
+    final Environment globals;
+    private Environment environment;
+    // where print writes and runtime errors go, per Context
+    final PrintStream out;
+    final ErrorSink errors;
+    // the FlatInterpreter running on this one, if any
+    FlatInterpreter flat = null;
+
+    // marks that evaluateNumber() produced a number, see takeSpilled()
+    private static final Object NUMBER = new Object();
+    private Object spilled = NUMBER;
+    // value of the return statement that last completed with RETURN
+    private Object returnValue = null;
+    // returned in place of a value when a function ends in a call to
+    // another LiteFunction, LiteFunction.call then runs tailCallee itself
+    static final Object TAIL_CALL = new Object();
+    private LiteFunction tailCallee = null;
+    private Object[] tailArguments = null;
+
+    // runs a spawned task: its own stack over the spawner's globals
+    Interpreter(Interpreter spawner){
+        this.globals = spawner.globals;
+        this.environment = globals;
+        this.errors = spawner.errors;
+        this.out = spawner.out;
+    }
 
-    Interpreter(){
+    Interpreter(ErrorSink errors, PrintStream out){
+        this.globals = new Environment();
+        this.environment = globals;
+        this.errors = errors;
+        this.out = out;
         globals.define("clock", 
             new LiteCallable() {
                 @Override
@@ -92,6 +121,148 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 public String toString(){return "<native function>";}
             }
         );
+        globals.define("spawn", 
+            new LiteCallable() {
+                @Override
+                public int arity() {return 1;}  
+                @Override
+                public Object call(Interpreter interpreter, List<Object> arguments){
+                    Object function = arguments.get(0);
+                    if(!(function instanceof LiteCallable) || ((LiteCallable)function).arity() != 0){
+                        throw new RuntimeError(null, "Can only spawn functions without parameters.");
+                    }
+                    // not the interpreter passed in, which the VM leaves null
+                    return new Task((LiteCallable)function, Interpreter.this);
+                }
+                @Override
+                public String toString(){return "<native function>";}
+            }
+        );
+        globals.define("await", 
+            new LiteCallable() {
+                @Override
+                public int arity() {return 1;}  
+                @Override
+                public Object call(Interpreter interpreter, List<Object> arguments){
+                    if(!(arguments.get(0) instanceof Task)){
+                        throw new RuntimeError(null, "Can only await tasks.");
+                    }
+                    return ((Task)arguments.get(0)).await();
+                }
+                @Override
+                public String toString(){return "<native function>";}
+            }
+        );
+        globals.define("channel", 
+            new LiteCallable() {
+                @Override
+                public int arity() {return 1;}  
+                @Override
+                public Object call(Interpreter interpreter, List<Object> arguments){
+                    Object capacity = arguments.get(0);
+                    if(!(capacity instanceof Double) || (double)capacity < 1
+                        || (double)capacity != Math.floor((double)capacity)){
+                        throw new RuntimeError(null, "Channel capacity must be a positive integer.");
+                    }
+                    return new Channel((int)Math.min((double)capacity, Integer.MAX_VALUE));
+                }
+                @Override
+                public String toString(){return "<native function>";}
+            }
+        );
+        globals.define("send", 
+            new LiteCallable() {
+                @Override
+                public int arity() {return 2;}  
+                @Override
+                public Object call(Interpreter interpreter, List<Object> arguments){
+                    channel(arguments.get(0)).send(arguments.get(1));
+                    return null;
+                }
+                @Override
+                public String toString(){return "<native function>";}
+            }
+        );
+        globals.define("recv", 
+            new LiteCallable() {
+                @Override
+                public int arity() {return 1;}  
+                @Override
+                public Object call(Interpreter interpreter, List<Object> arguments){
+                    return channel(arguments.get(0)).receive();
+                }
+                @Override
+                public String toString(){return "<native function>";}
+            }
+        );
+        globals.define("atomicAdd", 
+            new LiteCallable() {
+                @Override
+                public int arity() {return 2;}  
+                @Override
+                public Object call(Interpreter interpreter, List<Object> arguments){
+                    if(!(arguments.get(0) instanceof String)){
+                        throw new RuntimeError(null, "atomicAdd needs the name of a global.");
+                    }
+                    checkNumberOperand(null, arguments.get(1));
+                    return globals.atomicAdd((String)arguments.get(0), (double)arguments.get(1));
+                }
+                @Override
+                public String toString(){return "<native function>";}
+            }
+        );
+        globals.define("parallelFor", 
+            new LiteCallable() {
+                @Override
+                public int arity() {return 3;}  
+                @Override
+                public Object call(Interpreter interpreter, List<Object> arguments){
+                    Parallel.run(Interpreter.this, arguments.get(0), arguments.get(1), arguments.get(2), null);
+                    return null;
+                }
+                @Override
+                public String toString(){return "<native function>";}
+            }
+        );
+        globals.define("parallelSum", 
+            new LiteCallable() {
+                @Override
+                public int arity() {return 3;}  
+                @Override
+                public Object call(Interpreter interpreter, List<Object> arguments){
+                    return Parallel.run(Interpreter.this, arguments.get(0), arguments.get(1), arguments.get(2),
+                        Parallel.Reduction.SUM);
+                }
+                @Override
+                public String toString(){return "<native function>";}
+            }
+        );
+        globals.define("parallelMin", 
+            new LiteCallable() {
+                @Override
+                public int arity() {return 3;}  
+                @Override
+                public Object call(Interpreter interpreter, List<Object> arguments){
+                    return Parallel.run(Interpreter.this, arguments.get(0), arguments.get(1), arguments.get(2),
+                        Parallel.Reduction.MIN);
+                }
+                @Override
+                public String toString(){return "<native function>";}
+            }
+        );
+        globals.define("parallelMax", 
+            new LiteCallable() {
+                @Override
+                public int arity() {return 3;}  
+                @Override
+                public Object call(Interpreter interpreter, List<Object> arguments){
+                    return Parallel.run(Interpreter.this, arguments.get(0), arguments.get(1), arguments.get(2),
+                        Parallel.Reduction.MAX);
+                }
+                @Override
+                public String toString(){return "<native function>";}
+            }
+        );
     }
 
     @Override
@@ -106,11 +277,16 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitBinaryExpr(Binary expr) {
-        Object left  = evaluate(expr.left);
-        Object right = evaluate(expr.right);
-        switch (expr.operator.type) {
+        double number = binaryNumber(expr);
+        Object value = takeSpilled();
+        return value == NUMBER ? (Object)number : value;
+    }
+
+    // the boxed rules, used whenever an operand is not a number
+    Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
             case MINUS:
-                checkNumberOperands(expr.operator, left,right);   
+                checkNumberOperands(operator, left,right);   
                 return (double)left - (double)right;
             case PLUS:  
                 if(left instanceof Double && right instanceof Double){
@@ -128,35 +304,35 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                         stringified = stringified.substring(0,stringified.length()-2);
                     return stringified + (String)right;
                 }
-                throw new RuntimeError(expr.operator,"Operands must be two numbers or two strings.");
+                throw new RuntimeError(operator,"Operands must be two numbers or two strings.");
             case SLASH: 
-                checkNumberOperands(expr.operator, left,right);
+                checkNumberOperands(operator, left,right);
                 return (double)left / (double)right;
             case STAR:
                 if(left instanceof Double && right instanceof Double){
                     return (double)left * (double)right;
 
                 }else if(left instanceof String && right instanceof Double){
-                    checkRoundNumberOperand(expr.operator,right);
+                    checkRoundNumberOperand(operator,right);
                     long roundNumber = (long)Math.floor((Double)right);
                     return ((String)left).repeat((int)roundNumber);
                 }else if(left instanceof Double && right instanceof String){
-                    checkRoundNumberOperand(expr.operator,left);
+                    checkRoundNumberOperand(operator,left);
                     long roundNumber = (long)Math.floor((Double)left);
                     return ((String)right).repeat((int)roundNumber);
                 }
-                throw new RuntimeError(expr.operator,"Invalid operand types. Must be two numbers or a number and a string.");        
+                throw new RuntimeError(operator,"Invalid operand types. Must be two numbers or a number and a string.");        
             case GREATER:       
-                checkNumberOperands(expr.operator, left,right);    
+                checkNumberOperands(operator, left,right);    
                 return (double)left >  (double)right;
             case GREATER_EQUAL: 
-                checkNumberOperands(expr.operator, left,right);    
+                checkNumberOperands(operator, left,right);    
                 return (double)left >= (double)right;
             case LESS:          
-                checkNumberOperands(expr.operator, left,right);    
+                checkNumberOperands(operator, left,right);    
                 return (double)left <  (double)right;
             case LESS_EQUAL:    
-                checkNumberOperands(expr.operator, left,right);    
+                checkNumberOperands(operator, left,right);    
                 return (double)left <= (double)right;
 
             case OR:
@@ -170,13 +346,13 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 // return isTruthy(left)&&isTruthy(right);
             
             case BIT_AND:
-                checkRoundNumberOperands(expr.operator, left, right);
+                checkRoundNumberOperands(operator, left, right);
                 return (double)((int)Math.round((double)left) & (int)Math.round((double)right));
             case BIT_OR:
-                checkRoundNumberOperands(expr.operator, left, right);
+                checkRoundNumberOperands(operator, left, right);
                 return (double)((int)Math.round((double)left) | (int)Math.round((double)right));
             case BIT_XOR:
-                checkRoundNumberOperands(expr.operator, left, right);
+                checkRoundNumberOperands(operator, left, right);
                 return (double)((int)Math.round((double)left) ^ (int)Math.round((double)right));
 
             case BANG_EQUAL:    return !isEqual(left,right);
@@ -192,32 +368,24 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Object visitAssignExpr(Assign expr) {
         Object value = evaluate(expr.value);
-        environment.assign(expr.name,value);
+        if(expr.depth < 0) environment.assignGlobal(expr.slot,expr.name,value);
+        else if(expr.cell) ((Cell)environment.getAt(expr.depth,expr.slot)).set(value);
+        else environment.assignAt(expr.depth,expr.slot,value);
         return value;
     }
 
     @Override
     public Object visitUnaryExpr(Unary expr) {
-        Object right = evaluate(expr.right);
-        switch (expr.operator.type) {
-            case BANG:
-                return !isTruthy(right);
-            case MINUS:
-                checkNumberOperand(expr.operator, right);  
-                return -(double)right;
-            case BIT_NOT:
-                checkRoundNumberOperand(expr.operator, right);  
-                return (double)(~(int)Math.round((double)right));
-            default: // supress warning
-        }
-
-        // unreachable
-        return null;
+        double number = unaryNumber(expr);
+        Object value = takeSpilled();
+        return value == NUMBER ? (Object)number : value;
     }
 
     @Override
     public Object visitVariableExpr(Variable expr) {
-        return environment.get(expr.name);
+        if(expr.depth < 0) return environment.getGlobal(expr.slot,expr.name);
+        Object value = environment.getAt(expr.depth,expr.slot);
+        return expr.cell ? ((Cell)value).get() : value;
     }
 
     @Override
@@ -234,9 +402,40 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitCallExpr(Call expr) {
         Object callee = evaluate(expr.callee);
 
-        List<Object> arguments = new ArrayList<>();
-        for(Expr argument : expr.arguments){
-            arguments.add(evaluate(argument));
+        // arguments go straight to the fixed-arity entry points
+        // instead of through a List
+        try{
+            switch(expr.arguments.size()){
+                case 0:
+                    return callable(expr, callee).call0(this);
+                case 1: {
+                    Object first = evaluate(expr.arguments.get(0));
+                    return callable(expr, callee).call1(this, first);
+                }
+                case 2: {
+                    Object first = evaluate(expr.arguments.get(0));
+                    Object second = evaluate(expr.arguments.get(1));
+                    return callable(expr, callee).call2(this, first, second);
+                }
+                default:
+                    Object[] arguments = new Object[expr.arguments.size()];
+                    for(int i = 0 ; i < arguments.length ; ++i){
+                        arguments[i] = evaluate(expr.arguments.get(i));
+                    }
+                    return callable(expr, callee).call(this, arguments);
+            }
+        }catch(RuntimeError error){
+            throw RuntimeError.at(expr.paren, error);
+        }
+    }
+    // Each call site caches the last callee that passed its checks, calling
+    // the same function again skips the type and arity check.
+    // The call site keeps the declaration of the last function it checked,
+    // which is part of the Script, rather than the function itself, which
+    // holds the Cells of one run in one Context and would outlive it.
+    private LiteCallable callable(Call expr, Object callee){
+        if(callee instanceof LiteFunction && ((LiteFunction)callee).declaration == expr.cached){
+            return (LiteFunction)callee;
         }
 
         if(!(callee instanceof LiteCallable)){
@@ -245,102 +444,449 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
 
         LiteCallable function = (LiteCallable)callee;
-        if(arguments.size() != function.arity()){
+        if(expr.arguments.size() != function.arity()){
             throw new RuntimeError(expr.paren, 
-                "Expected "+function.arity()+" arguments but got "+arguments.size()+".");
+                "Expected "+function.arity()+" arguments but got "+expr.arguments.size()+".");
         }
-        return function.call(this,arguments);
+        if(function instanceof LiteFunction) expr.cached = ((LiteFunction)function).declaration;
+        return function;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt){
+    public Completion visitPrintStmt(Stmt.Print stmt){
         Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
-        return null;
+        out.println(stringify(value));
+        return Completion.NORMAL;
     }
     
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt){
+    public Completion visitExpressionStmt(Stmt.Expression stmt){
         evaluate(stmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt){
+    public Completion visitVarStmt(Stmt.Var stmt){
         Object value = null;
         if(stmt.initializer!=null){
             value = evaluate(stmt.initializer);
         }
-        environment.define(stmt.name.lexeme, value);
-        return null;
+        if(stmt.slot < 0) environment.define(stmt.name.lexeme, value);
+        else if(stmt.cell) cell(stmt.slot, stmt.redeclaration).value = value;
+        else environment.defineAt(stmt.slot, value);
+        return Completion.NORMAL;
     }
     
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt){
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block stmt){
+        // only a top level block has a frame of its own, the rest keep
+        // their variables in the enclosing one
+        Environment frame = stmt.slots == 0 ? environment : new Environment(environment,stmt.slots);
+        if(stmt.hoisted != null) hoist(stmt.hoisted, frame);
+        return executeBlock(stmt.statements, frame);
+    }
+    // the Cells of variables a closure captured before their declaration,
+    // made as their scope is entered
+    static void hoist(int[] hoisted, Environment frame){
+        for(int i = 0 ; i < hoisted.length ; i += 4){
+            frame.defineAt(hoisted[i], Cell.hoisted(frame, hoisted[i+1], hoisted[i+2], hoisted[i+3]));
+        }
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt){
+    public Completion visitIfStmt(Stmt.If stmt){
         if(isTruthy(evaluate(stmt.condition))){
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         }else if(stmt.elseBranch!=null){
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt){
-        try{
+    public Completion visitWhileStmt(Stmt.While stmt){
+        boolean forever = Optimizer.alwaysTrue(stmt.condition);
+        while(forever || isTruthy(evaluate(stmt.condition))){
+            Completion completion = execute(stmt.body);
+            if(completion == Completion.BREAK) break;
+            if(completion == Completion.RETURN) return completion;
+        }
+        return Completion.NORMAL;
+    }
 
-            while(isTruthy(evaluate(stmt.condition))){
-                execute(stmt.body);
+    @Override
+    public Completion visitForRangeStmt(Stmt.ForRange stmt){
+        double start = rangeBound(stmt.name, evaluate(stmt.start));
+        double end = rangeBound(stmt.name, evaluate(stmt.end));
+        double step = stmt.step == null ? 1 : rangeStep(stmt.name, evaluate(stmt.step));
+        // the counter stays a double here, the body only sees a copy of it
+        Environment frame = stmt.slots == 0 ? environment : new Environment(environment,stmt.slots);
+        Environment previous = this.environment;
+        try{
+            this.environment = frame;
+            for(double i = start ; inRange(i, end, step) ; i += step){
+                frame.defineAt(stmt.slot, stmt.cell ? new Cell(i) : (Object)i);
+                Completion completion = execute(stmt.body);
+                if(completion == Completion.BREAK) break;
+                if(completion == Completion.RETURN) return completion;
             }
-        }catch(BreakException B){
-            
+            return Completion.NORMAL;
+        }finally{
+            this.environment = previous;
         }
-        return null;
+    }
+    // A range counts from its start towards its end, stopping before it,
+    // upwards for a positive step and downwards for a negative one. The
+    // bounds and step are read once, before the first iteration.
+    static double rangeBound(Token name, Object value){
+        if(value instanceof Double) return (double)value;
+        throw new RuntimeError(name, "Range bounds must be numbers.");
+    }
+    static double rangeStep(Token name, Object value){
+        if(value instanceof Double && (double)value != 0) return (double)value;
+        throw new RuntimeError(name, "Range step must be a non-zero number.");
+    }
+    static boolean inRange(double i, double end, double step){
+        return step > 0 ? i < end : i > end;
     }
 
     @Override
-    public Void visitBreakStmt(Stmt.Break stmt){
-        throw new BreakException();
+    public Completion visitBreakStmt(Stmt.Break stmt){
+        return Completion.BREAK;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt){
-        LiteFunction function = new LiteFunction(stmt,environment);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+    public Completion visitFunctionStmt(Stmt.Function stmt){
+        // made before the closure, which may capture the function itself
+        Cell cell = stmt.cell ? cell(stmt.slot, stmt.redeclaration) : null;
+        LiteFunction function = new LiteFunction(stmt, closure(stmt));
+        if(cell != null) cell.value = function;
+        else if(stmt.slot < 0) environment.define(stmt.name.lexeme, function);
+        else environment.defineAt(stmt.slot, function);
+        return Completion.NORMAL;
+    }
+    // the Cells stmt captures, none when it captures nothing
+    private Environment closure(Stmt.Function stmt){
+        if(stmt.captures.length == 0) return new Environment(null, environment.link);
+        Object[] cells = new Object[stmt.captures.length/2];
+        for(int i = 0 ; i < cells.length ; ++i){
+            cells[i] = environment.getAt(stmt.captures[2*i], stmt.captures[2*i+1]);
+        }
+        return new Environment(cells, environment.link);
+    }
+    // the Cell for a captured local declared in the current scope, a new
+    // one unless the declaration repeats an earlier one
+    private Cell cell(int slot, boolean redeclaration){
+        if(redeclaration) return (Cell)environment.getAt(0, slot);
+        Cell cell = new Cell(null);
+        environment.defineAt(slot, cell);
+        return cell;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt){
+    public Completion visitReturnStmt(Stmt.Return stmt){
+        if(stmt.tailCall){
+            returnValue = tailCall((Call)stmt.value);
+            return Completion.RETURN;
+        }
         Object value = null;
         if(stmt.value != null) value = evaluate(stmt.value);
 
-        throw new Return(value);
+        returnValue = value;
+        return Completion.RETURN;
+    }
+    private Object tailCall(Call expr){
+        Object callee = evaluate(expr.callee);
+        Object[] arguments = new Object[expr.arguments.size()];
+        for(int i = 0 ; i < arguments.length ; ++i){
+            arguments[i] = evaluate(expr.arguments.get(i));
+        }
+        LiteCallable function = callable(expr, callee);
+        if(function instanceof LiteFunction) return tailCall((LiteFunction)function, arguments);
+        try{
+            return function.call(this, arguments);
+        }catch(RuntimeError error){
+            throw RuntimeError.at(expr.paren, error);
+        }
+    }
+    // leaves the call for LiteFunction's trampoline
+    Object tailCall(LiteFunction function, Object[] arguments){
+        tailCallee = function;
+        tailArguments = arguments;
+        return TAIL_CALL;
+    }
+    LiteFunction takeTailCallee(){
+        LiteFunction function = tailCallee;
+        tailCallee = null;
+        return function;
+    }
+    Object[] takeTailArguments(){
+        Object[] arguments = tailArguments;
+        tailArguments = null;
+        return arguments;
+    }
+
+    // the value of the return that just completed, read once by the caller
+    Object takeReturnValue(){
+        Object value = returnValue;
+        returnValue = null;
+        return value;
     }
 
 
     private Object evaluate(Expr expr){
         return expr.accept(this);
     }
-    private boolean isTruthy(Object object){
+
+    // Numeric fast path: evaluates expr keeping numbers unboxed, so
+    // arithmetic nested inside an expression allocates nothing and only
+    // the final result gets boxed when it is stored or passed on. When
+    // the result is not a number it is parked in `spilled` instead and
+    // the returned double is meaningless; callers check with takeSpilled().
+    private double evaluateNumber(Expr expr){
+        if(expr instanceof Binary) return binaryNumber((Binary)expr);
+        if(expr instanceof Unary) return unaryNumber((Unary)expr);
+        if(expr instanceof Grouping) return evaluateNumber(((Grouping)expr).expression);
+        if(expr instanceof Ternary){
+            Ternary ternary = (Ternary)expr;
+            if(isTruthy(evaluate(ternary.left)))
+                return evaluateNumber(ternary.middle);
+            else
+                return evaluateNumber(ternary.right);
+        }
+
+        Object value = evaluate(expr);
+        if(value instanceof Double) return (double)value;
+        spilled = value;
+        return 0;
+    }
+    private Object takeSpilled(){
+        Object value = spilled;
+        spilled = NUMBER;
+        return value;
+    }
+    // Binary and Unary nodes specialize themselves: the first
+    // evaluation records the operand types seen in the node's `specialized`
+    // state and later evaluations take the matching fast path, guarded by
+    // a cheap type check. When a guard fails the node falls back to the
+    // GENERIC path for good instead of flip-flopping between states.
+    private static final byte UNSPECIALIZED = 0;
+    private static final byte GENERIC       = 1;
+    private static final byte NUMBERS       = 2;
+    private static final byte STRINGS       = 3;
+    private static final byte STRING_NUMBER = 4;
+    private static final byte NUMBER_STRING = 5;
+    private static final byte OBJECTS       = 6;
+    private static final byte BOOLEAN       = 7;
+
+    private double binaryNumber(Binary expr){
+        Token operator = expr.operator;
+        switch (expr.specialized) {
+            case NUMBERS: {
+                double left  = evaluateNumber(expr.left);
+                Object leftValue  = takeSpilled();
+                double right = evaluateNumber(expr.right);
+                Object rightValue = takeSpilled();
+                if(leftValue == NUMBER && rightValue == NUMBER){
+                    return numbers(operator, left, right);
+                }
+                expr.specialized = GENERIC;
+                return spill(binary(operator,
+                    leftValue  == NUMBER ? (Object)left  : leftValue,
+                    rightValue == NUMBER ? (Object)right : rightValue));
+            }
+            case STRINGS: {
+                Object left  = evaluate(expr.left);
+                Object right = evaluate(expr.right);
+                if(left instanceof String && right instanceof String){
+                    spilled = (String)left + (String)right;
+                    return 0;
+                }
+                expr.specialized = GENERIC;
+                return spill(binary(operator, left, right));
+            }
+            case STRING_NUMBER: {
+                Object left  = evaluate(expr.left);
+                double right = evaluateNumber(expr.right);
+                Object rightValue = takeSpilled();
+                if(left instanceof String && rightValue == NUMBER){
+                    spilled = stringNumber(operator, (String)left, right);
+                    return 0;
+                }
+                expr.specialized = GENERIC;
+                return spill(binary(operator, left, rightValue == NUMBER ? (Object)right : rightValue));
+            }
+            case NUMBER_STRING: {
+                double left  = evaluateNumber(expr.left);
+                Object leftValue = takeSpilled();
+                Object right = evaluate(expr.right);
+                if(leftValue == NUMBER && right instanceof String){
+                    spilled = numberString(operator, left, (String)right);
+                    return 0;
+                }
+                expr.specialized = GENERIC;
+                return spill(binary(operator, leftValue == NUMBER ? (Object)left : leftValue, right));
+            }
+            case OBJECTS:
+                return spill(binary(operator, evaluate(expr.left), evaluate(expr.right)));
+            case GENERIC:
+                return genericNumber(expr);
+            default: {
+                Object left  = evaluate(expr.left);
+                Object right = evaluate(expr.right);
+                expr.specialized = specialize(operator, left, right);
+                return spill(binary(operator, left, right));
+            }
+        }
+    }
+    private byte specialize(Token operator, Object left, Object right){
+        switch (operator.type) {
+            case EQUAL_EQUAL: case BANG_EQUAL: case AND: case OR:
+                return OBJECTS;
+            case PLUS: case STAR:
+                if(left instanceof String && right instanceof String)
+                    return operator.type == TokenType.PLUS ? STRINGS : GENERIC;
+                if(left instanceof String && right instanceof Double) return STRING_NUMBER;
+                if(left instanceof Double && right instanceof String) return NUMBER_STRING;
+                break;
+            default: // supress warning
+        }
+        if(left instanceof Double && right instanceof Double) return NUMBERS;
+        return GENERIC;
+    }
+    private double genericNumber(Binary expr){
+        Token operator = expr.operator;
+        switch (operator.type) {
+            case MINUS: case PLUS: case SLASH: case STAR:
+            case GREATER: case GREATER_EQUAL: case LESS: case LESS_EQUAL:
+            case BIT_AND: case BIT_OR: case BIT_XOR:
+                break;
+            default:
+                return spill(binary(operator, evaluate(expr.left), evaluate(expr.right)));
+        }
+
+        double left  = evaluateNumber(expr.left);
+        Object leftValue  = takeSpilled();
+        double right = evaluateNumber(expr.right);
+        Object rightValue = takeSpilled();
+        if(leftValue != NUMBER || rightValue != NUMBER){
+            return spill(binary(operator,
+                leftValue  == NUMBER ? (Object)left  : leftValue,
+                rightValue == NUMBER ? (Object)right : rightValue));
+        }
+        return numbers(operator, left, right);
+    }
+    private double numbers(Token operator, double left, double right){
+        switch (operator.type) {
+            case MINUS: return left - right;
+            case PLUS:  return left + right;
+            case SLASH: return left / right;
+            case STAR:  return left * right;
+
+            case GREATER:       spilled = left >  right; return 0;
+            case GREATER_EQUAL: spilled = left >= right; return 0;
+            case LESS:          spilled = left <  right; return 0;
+            case LESS_EQUAL:    spilled = left <= right; return 0;
+
+            case BIT_AND:
+                checkRoundNumberOperands(operator, left, right);
+                return (double)((int)Math.round(left) & (int)Math.round(right));
+            case BIT_OR:
+                checkRoundNumberOperands(operator, left, right);
+                return (double)((int)Math.round(left) | (int)Math.round(right));
+            case BIT_XOR:
+                checkRoundNumberOperands(operator, left, right);
+                return (double)((int)Math.round(left) ^ (int)Math.round(right));
+            default:
+                // equality and logic operators on two numbers
+                return spill(binary(operator, left, right));
+        }
+    }
+    private String stringNumber(Token operator, String left, double right){
+        if(operator.type == TokenType.PLUS) return left + stringify(right);
+        checkRoundNumberOperand(operator, right);
+        return left.repeat((int)(long)Math.floor(right));
+    }
+    private String numberString(Token operator, double left, String right){
+        if(operator.type == TokenType.PLUS) return stringify(left) + right;
+        checkRoundNumberOperand(operator, left);
+        return right.repeat((int)(long)Math.floor(left));
+    }
+    // hands a boxed result back through the numeric fast path
+    private double spill(Object value){
+        if(value instanceof Double) return (double)value;
+        spilled = value;
+        return 0;
+    }
+
+    private double unaryNumber(Unary expr){
+        Token operator = expr.operator;
+        switch (expr.specialized) {
+            case NUMBERS: {
+                double right = evaluateNumber(expr.right);
+                Object rightValue = takeSpilled();
+                if(rightValue == NUMBER){
+                    if(operator.type == TokenType.MINUS) return -right;
+                    checkRoundNumberOperand(operator, right);
+                    return (double)(~(int)Math.round(right));
+                }
+                expr.specialized = GENERIC;
+                return spill(unary(operator, rightValue));
+            }
+            case BOOLEAN: {
+                Object right = evaluate(expr.right);
+                if(right instanceof Boolean){
+                    spilled = !(boolean)right;
+                    return 0;
+                }
+                expr.specialized = GENERIC;
+                return spill(unary(operator, right));
+            }
+            case GENERIC:
+                return spill(unary(operator, evaluate(expr.right)));
+            default: {
+                Object right = evaluate(expr.right);
+                if(operator.type == TokenType.BANG)
+                    expr.specialized = right instanceof Boolean ? BOOLEAN : GENERIC;
+                else
+                    expr.specialized = right instanceof Double ? NUMBERS : GENERIC;
+                return spill(unary(operator, right));
+            }
+        }
+    }
+    Object unary(Token operator, Object right){
+        switch (operator.type) {
+            case BANG:
+                return !isTruthy(right);
+            case MINUS:
+                checkNumberOperand(operator, right);
+                return -(double)right;
+            case BIT_NOT:
+                checkRoundNumberOperand(operator, right);
+                return (double)(~(int)Math.round((double)right));
+            default: // supress warning
+        }
+
+        // unreachable
+        return null;
+    }
+    boolean isTruthy(Object object){
         if(object == null) return false;
         if(object instanceof Boolean) return (boolean)object;
         if(object instanceof Double) return (double)object != 0;
         if(object instanceof String) return !((String)object).isEmpty();
         return true;
     }
-    private boolean isEqual(Object a,Object b){
+    boolean isEqual(Object a,Object b){
         if(a==null && b==null) return true;
         if(a==null) return false;
 
         return a.equals(b);
     }
+    private static Channel channel(Object channel){
+        if(channel instanceof Channel) return (Channel)channel;
+        throw new RuntimeError(null, "Can only send to and receive from channels.");
+    }
     private void checkNumberOperand(Token operator, Object operand){
         if(operand instanceof Double) return;
         throw new RuntimeError(operator,"Operand must be a number.");
@@ -350,6 +896,14 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         ) return;
         throw new RuntimeError(operator,"Operand must be a round number.");
     }
+    private void checkRoundNumberOperand(Token operator, double operand){
+        if(operand - (double)Math.round(operand) == 0) return;
+        throw new RuntimeError(operator,"Operand must be a round number.");
+    }
+    private void checkRoundNumberOperands(Token operator, double left, double right){
+        if(left - (double)Math.round(left) == 0 && right - (double)Math.round(right) == 0) return;
+        throw new RuntimeError(operator,"Operands must be round numbers.");
+    }
     private void checkRoundNumberOperands(Token operator, Object left, Object right){
         if( (left  instanceof Double && ((double)left  - (double)Math.round((double)left ) == 0))
         &&  (right instanceof Double && ((double)right - (double)Math.round((double)right) == 0))
@@ -364,7 +918,13 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         throw new RuntimeError(operator,"Operands must be numbers.");
 
     }
-    private String stringify(Object object){
+    private String stringify(double number){
+        String text = Double.toString(number);
+        if(text.endsWith(".0"))
+            text = text.substring(0,text.length()-2);
+        return text;
+    }
+    String stringify(Object object){
         if(object == null) return "nil";
         if(object instanceof Double){
             String text = object.toString();
@@ -375,25 +935,37 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return object.toString();
     }
     
-    void interpret(List<Stmt> statements){
+    // false after a runtime error, which goes to the error sink
+    boolean interpret(List<Stmt> statements, Globals.Names names){
+        environment = new Environment(globals, names);
         try{
             for(Stmt statement : statements){
-                execute(statement);
+                if(execute(statement) != Completion.NORMAL) break;
             }
+            return true;
         }catch(RuntimeError error){
-            Lite.runtimeError(error);
+            errors.runtimeError(error.token.line, error.getMessage());
+            return false;
+        }finally{
+            environment = globals;
         }
     }
 
-    private void execute(Stmt stmt){
-        stmt.accept(this);
+    private Completion execute(Stmt stmt){
+        return stmt.accept(this);
     }
 
-    public void executeBlock(List<Stmt> statements, Environment environment){
+    // stops at the first statement that breaks or returns and hands its
+    // completion on to the enclosing loop or function
+    public Completion executeBlock(List<Stmt> statements, Environment environment){
         Environment previous = this.environment;
         try{
             this.environment = environment;
-            for(Stmt stmt : statements) execute(stmt);
+            for(Stmt stmt : statements){
+                Completion completion = execute(stmt);
+                if(completion != Completion.NORMAL) return completion;
+            }
+            return Completion.NORMAL;
         }finally{
             this.environment = previous;
         }
@@ -0,0 +1,541 @@
+package lite;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import lite.ClassWriter.Label;
+
+import static lite.ClassWriter.Code.*;
+
+// Second execution tier. LiteFunction counts its calls and once a
+// function declaration gets hot its body is compiled into a hidden JVM
+// class implementing LiteCallable, which HotSpot can then inline and
+// register-allocate like any other Java code.
+//
+// Locals of the compiled function live in JVM local variables instead of
+// Environments, so only functions that declare no nested functions (and
+// so never capture their own locals) are compiled; the rest stay in the
+// Interpreter. Anything outside the function is reached the same way the
+// Interpreter does: through the closure, whose link leads to the globals.
+class Jit implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+    static final int THRESHOLD = 1000;
+    static boolean enabled = true;
+
+    // per declaration: how to instantiate its compiled class
+    static final class Code{
+        private final MethodHandle constructor;
+        private final Object[] constants;
+
+        private Code(MethodHandle constructor, Object[] constants){
+            this.constructor = constructor;
+            this.constants = constants;
+        }
+
+        LiteCallable instantiate(Environment closure){
+            try{
+                return (LiteCallable)constructor.invoke(constants, closure);
+            }catch(Throwable error){
+                throw new IllegalStateException(error);
+            }
+        }
+    }
+    // marks declarations the Jit gave up on
+    private static final Code UNSUPPORTED = new Code(null, null);
+
+    // called on every interpreted call: null until the declaration is hot
+    static LiteCallable tierUp(Stmt.Function declaration, Environment closure){
+        Code code = declaration.jit;
+        if(code == null){
+            if(!enabled || ++declaration.calls < THRESHOLD) return null;
+            code = declaration.jit = compile(declaration);
+        }
+        if(code == UNSUPPORTED) return null;
+        return code.instantiate(closure);
+    }
+
+    private static Code compile(Stmt.Function declaration){
+        if(!supported(declaration.body)) return UNSUPPORTED;
+        try{
+            Jit jit = new Jit(declaration);
+            byte[] bytes = jit.generate();
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            MethodHandle constructor = lookup.findConstructor(lookup.lookupClass(),
+                MethodType.methodType(void.class, Object[].class, Environment.class));
+            return new Code(constructor, jit.constants.toArray());
+        }catch(ClassWriter.TooLarge | ReflectiveOperationException | LinkageError error){
+            return UNSUPPORTED;
+        }
+    }
+
+    private static boolean supported(List<Stmt> statements){
+        for(Stmt stmt : statements){
+            if(!supported(stmt)) return false;
+        }
+        return true;
+    }
+    private static boolean supported(Stmt stmt){
+        if(stmt instanceof Stmt.Function) return false;
+        if(stmt instanceof Stmt.Block) return supported(((Stmt.Block)stmt).statements);
+        if(stmt instanceof Stmt.While) return supported(((Stmt.While)stmt).body);
+        if(stmt instanceof Stmt.ForRange) return supported(((Stmt.ForRange)stmt).body);
+        if(stmt instanceof Stmt.If){
+            Stmt.If ifStmt = (Stmt.If)stmt;
+            return supported(ifStmt.thenBranch)
+                && (ifStmt.elseBranch == null || supported(ifStmt.elseBranch));
+        }
+        return true;
+    }
+
+    private static final String CLASS = "lite/JitCode";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String OBJECT_D = "Ljava/lang/Object;";
+    private static final String ENVIRONMENT = "lite/Environment";
+    private static final String ENVIRONMENT_D = "Llite/Environment;";
+    private static final String INTERPRETER_D = "Llite/Interpreter;";
+    private static final String TOKEN = "lite/Token";
+    private static final String TOKEN_D = "Llite/Token;";
+    private static final String RUNTIME = "lite/JitRuntime";
+    // (left, right, interpreter, operator)
+    // call(interpreter, arguments)
+    private static final String CALL_D = "("+INTERPRETER_D+"[Ljava/lang/Object;)"+OBJECT_D;
+    private static final String BINARY_D = "("+OBJECT_D+OBJECT_D+INTERPRETER_D+TOKEN_D+")";
+
+    // fixed JVM locals of the generated call method
+    private static final int THIS = 0;
+    private static final int INTERPRETER = 1;
+    private static final int ARGUMENTS = 2;
+    private static final int CONSTANTS = 3;
+
+    private final Stmt.Function declaration;
+    private final ClassWriter writer = new ClassWriter(CLASS, OBJECT, "lite/LiteCallable");
+    private ClassWriter.Code code;
+
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object,Integer> valueConstants = new HashMap<>();
+    private final Map<Object,Integer> tokenConstants = new IdentityHashMap<>();
+
+    // resolver slot in the function's frame -> JVM local
+    private int[] locals;
+    private final List<Label> loopExits = new ArrayList<>();
+
+    private Jit(Stmt.Function declaration){
+        this.declaration = declaration;
+    }
+
+    private byte[] generate(){
+        writer.field(ClassWriter.ACC_FINAL, "k", "[Ljava/lang/Object;");
+        writer.field(ClassWriter.ACC_FINAL, "closure", ENVIRONMENT_D);
+
+        ClassWriter.Code init = writer.method(ClassWriter.ACC_PUBLIC, "<init>",
+            "([Ljava/lang/Object;"+ENVIRONMENT_D+")V");
+        init.load(0);
+        init.invoke(INVOKESPECIAL, OBJECT, "<init>", "()V");
+        init.load(0);
+        init.load(1);
+        init.field(PUTFIELD, CLASS, "k", "[Ljava/lang/Object;");
+        init.load(0);
+        init.load(2);
+        init.field(PUTFIELD, CLASS, "closure", ENVIRONMENT_D);
+        init.op(RETURN, 0);
+        init.end();
+
+        ClassWriter.Code arity = writer.method(ClassWriter.ACC_PUBLIC, "arity", "()I");
+        arity.pushInt(declaration.params.size());
+        arity.op(IRETURN, -1);
+        arity.end();
+
+        // callers holding a List come through this bridge
+        ClassWriter.Code bridge = writer.method(ClassWriter.ACC_PUBLIC, "call",
+            "("+INTERPRETER_D+"Ljava/util/List;)"+OBJECT_D);
+        bridge.load(THIS);
+        bridge.load(INTERPRETER);
+        bridge.load(ARGUMENTS);
+        bridge.invoke(INVOKEINTERFACE, "java/util/List", "toArray", "()[Ljava/lang/Object;");
+        bridge.invoke(INVOKEVIRTUAL, CLASS, "call", CALL_D);
+        bridge.op(ARETURN, -1);
+        bridge.end();
+
+        code = writer.method(ClassWriter.ACC_PUBLIC, "call", CALL_D);
+        code.load(THIS);
+        code.field(GETFIELD, CLASS, "k", "[Ljava/lang/Object;");
+        code.store(CONSTANTS);
+
+        locals = allocateLocals(declaration.slots);
+        for(int i = 0 ; i < declaration.params.size() ; ++i){
+            code.load(ARGUMENTS);
+            code.pushInt(i);
+            code.op(AALOAD, -1);
+            code.store(locals[i]);
+        }
+        for(Stmt stmt : declaration.body){
+            compile(stmt);
+        }
+        code.op(ACONST_NULL, 1);
+        code.op(ARETURN, -1);
+        // HotSpot does not compile methods this large, no point in keeping them
+        if(code.size() > 8000) throw new ClassWriter.TooLarge("Method too large.");
+        code.end();
+        return writer.toByteArray();
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt){
+        // the block's variables already have locals in the function's frame
+        for(Stmt statement : stmt.statements){
+            compile(statement);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt){
+        compile(stmt.expression);
+        code.op(POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt){
+        // rejected up front by supported()
+        throw new ClassWriter.TooLarge("Nested functions are not compiled.");
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt){
+        Label elseLabel = new Label();
+        condition(stmt.condition);
+        code.jump(IFEQ, elseLabel);
+        compile(stmt.thenBranch);
+        if(stmt.elseBranch == null){
+            code.bind(elseLabel);
+            return null;
+        }
+        Label end = new Label();
+        code.jump(GOTO, end);
+        code.bind(elseLabel);
+        compile(stmt.elseBranch);
+        code.bind(end);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt){
+        compile(stmt.expression);
+        code.load(INTERPRETER);
+        code.invoke(INVOKESTATIC, RUNTIME, "print", "("+OBJECT_D+INTERPRETER_D+")V");
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt){
+        if(stmt.initializer != null) compile(stmt.initializer);
+        else code.op(ACONST_NULL, 1);
+        code.store(locals[stmt.slot]);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt){
+        Label start = new Label();
+        Label exit = new Label();
+        code.bind(start);
+        if(!Optimizer.alwaysTrue(stmt.condition)){
+            condition(stmt.condition);
+            code.jump(IFEQ, exit);
+        }
+        loopExits.add(exit);
+        compile(stmt.body);
+        loopExits.remove(loopExits.size()-1);
+        code.jump(GOTO, start);
+        code.bind(exit);
+        return null;
+    }
+
+    // The counter, end and step are unboxed into JVM doubles once, only the
+    // loop variable the body sees is a boxed copy of the counter.
+    @Override
+    public Void visitForRangeStmt(Stmt.ForRange stmt){
+        int counter = code.allocateDoubleLocal();
+        int end = code.allocateDoubleLocal();
+        int step = code.allocateDoubleLocal();
+        String bound = "("+OBJECT_D+TOKEN_D+")D";
+        compile(stmt.start);
+        token(stmt.name);
+        code.invoke(INVOKESTATIC, RUNTIME, "rangeBound", bound);
+        code.storeDouble(counter);
+        compile(stmt.end);
+        token(stmt.name);
+        code.invoke(INVOKESTATIC, RUNTIME, "rangeBound", bound);
+        code.storeDouble(end);
+        if(stmt.step == null){
+            code.op(DCONST_1, 2);
+        }else{
+            compile(stmt.step);
+            token(stmt.name);
+            code.invoke(INVOKESTATIC, RUNTIME, "rangeStep", bound);
+        }
+        code.storeDouble(step);
+
+        Label start = new Label();
+        Label exit = new Label();
+        code.bind(start);
+        code.loadDouble(counter);
+        code.loadDouble(end);
+        code.loadDouble(step);
+        code.invoke(INVOKESTATIC, RUNTIME, "inRange", "(DDD)Z");
+        code.jump(IFEQ, exit);
+        code.loadDouble(counter);
+        code.invoke(INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
+        code.store(locals[stmt.slot]);
+        loopExits.add(exit);
+        compile(stmt.body);
+        loopExits.remove(loopExits.size()-1);
+        code.loadDouble(counter);
+        code.loadDouble(step);
+        code.op(DADD, -2);
+        code.storeDouble(counter);
+        code.jump(GOTO, start);
+        code.bind(exit);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt){
+        // a tail call comes back as Interpreter.TAIL_CALL for the caller's trampoline
+        if(stmt.tailCall) call((Expr.Call)stmt.value, "tailCall");
+        else if(stmt.value != null) compile(stmt.value);
+        else code.op(ACONST_NULL, 1);
+        code.op(ARETURN, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt){
+        code.jump(GOTO, loopExits.get(loopExits.size()-1));
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr){
+        compile(expr.left);
+        compile(expr.right);
+        switch(expr.operator.type){
+            case PLUS:  binary("add", expr.operator); break;
+            case MINUS: binary("subtract", expr.operator); break;
+            case STAR:  binary("multiply", expr.operator); break;
+            case SLASH: binary("divide", expr.operator); break;
+            case GREATER: case GREATER_EQUAL: case LESS: case LESS_EQUAL:
+            case EQUAL_EQUAL: case BANG_EQUAL:
+                comparison(expr);
+                box();
+                break;
+            default:
+                binary("binary", expr.operator);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr){
+        call(expr, "call");
+        return null;
+    }
+    private void call(Expr.Call expr, String helper){
+        compile(expr.callee);
+        code.pushInt(expr.arguments.size());
+        code.type(ANEWARRAY, OBJECT);
+        for(int i = 0 ; i < expr.arguments.size() ; ++i){
+            code.op(DUP, 1);
+            code.pushInt(i);
+            compile(expr.arguments.get(i));
+            code.op(AASTORE, -3);
+        }
+        code.load(INTERPRETER);
+        token(expr.paren);
+        code.invoke(INVOKESTATIC, RUNTIME, helper,
+            "("+OBJECT_D+"[Ljava/lang/Object;"+INTERPRETER_D+TOKEN_D+")"+OBJECT_D);
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr){
+        Label elseLabel = new Label();
+        Label end = new Label();
+        condition(expr.left);
+        code.jump(IFEQ, elseLabel);
+        compile(expr.middle);
+        code.jump(GOTO, end);
+        code.bind(elseLabel);
+        compile(expr.right);
+        code.bind(end);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr){
+        compile(expr.value);
+        if(expr.depth < 0){
+            code.load(THIS);
+            code.field(GETFIELD, CLASS, "closure", ENVIRONMENT_D);
+            code.pushInt(expr.slot);
+            token(expr.name);
+            code.invoke(INVOKESTATIC, RUNTIME, "assignGlobal",
+                "("+OBJECT_D+ENVIRONMENT_D+"I"+TOKEN_D+")"+OBJECT_D);
+        }else if(expr.depth == 0){
+            code.op(DUP, 1);
+            code.store(locals[expr.slot]);
+        }else{
+            code.load(THIS);
+            code.field(GETFIELD, CLASS, "closure", ENVIRONMENT_D);
+            code.pushInt(expr.depth - 1);
+            code.pushInt(expr.slot);
+            code.invoke(INVOKESTATIC, RUNTIME, expr.cell ? "assignCell" : "assignAt",
+                "("+OBJECT_D+ENVIRONMENT_D+"II)"+OBJECT_D);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr){
+        compile(expr.right);
+        code.load(INTERPRETER);
+        token(expr.operator);
+        code.invoke(INVOKESTATIC, RUNTIME, "unary",
+            "("+OBJECT_D+INTERPRETER_D+TOKEN_D+")"+OBJECT_D);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr){
+        if(expr.depth < 0){
+            code.load(THIS);
+            code.field(GETFIELD, CLASS, "closure", ENVIRONMENT_D);
+            code.pushInt(expr.slot);
+            token(expr.name);
+            code.invoke(INVOKESTATIC, RUNTIME, "getGlobal",
+                "("+ENVIRONMENT_D+"I"+TOKEN_D+")"+OBJECT_D);
+        }else if(expr.depth == 0){
+            code.load(locals[expr.slot]);
+        }else{
+            code.load(THIS);
+            code.field(GETFIELD, CLASS, "closure", ENVIRONMENT_D);
+            code.pushInt(expr.depth - 1);
+            code.pushInt(expr.slot);
+            if(expr.cell) code.invoke(INVOKESTATIC, RUNTIME, "getCell", "("+ENVIRONMENT_D+"II)"+OBJECT_D);
+            else code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "getAt", "(II)"+OBJECT_D);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr){
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr){
+        if(expr.value == null){
+            code.op(ACONST_NULL, 1);
+        }else if(expr.value instanceof Boolean){
+            code.field(GETSTATIC, "java/lang/Boolean",
+                (boolean)expr.value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+        }else{
+            constant(valueConstants, expr.value);
+        }
+        return null;
+    }
+
+    private void compile(Stmt stmt){
+        stmt.accept(this);
+    }
+    private void compile(Expr expr){
+        expr.accept(this);
+    }
+
+    // leaves an int on the stack: 0 when expr is falsey
+    private void condition(Expr expr){
+        if(expr instanceof Expr.Grouping){
+            condition(((Expr.Grouping)expr).expression);
+            return;
+        }
+        if(expr instanceof Expr.Binary){
+            Expr.Binary binary = (Expr.Binary)expr;
+            switch(binary.operator.type){
+                case GREATER: case GREATER_EQUAL: case LESS: case LESS_EQUAL:
+                case EQUAL_EQUAL: case BANG_EQUAL:
+                    compile(binary.left);
+                    compile(binary.right);
+                    comparison(binary);
+                    return;
+                default: // supress warning
+            }
+        }
+        compile(expr);
+        code.load(INTERPRETER);
+        code.invoke(INVOKESTATIC, RUNTIME, "isTruthy", "("+OBJECT_D+INTERPRETER_D+")Z");
+    }
+    // both operands on the stack, leaves the result as an int
+    private void comparison(Expr.Binary expr){
+        String helper;
+        switch(expr.operator.type){
+            case GREATER:       helper = "greater"; break;
+            case GREATER_EQUAL: helper = "greaterEqual"; break;
+            case LESS:          helper = "less"; break;
+            case LESS_EQUAL:    helper = "lessEqual"; break;
+            default:
+                code.load(INTERPRETER);
+                code.invoke(INVOKESTATIC, RUNTIME, "equal", "("+OBJECT_D+OBJECT_D+INTERPRETER_D+")Z");
+                if(expr.operator.type == TokenType.BANG_EQUAL){
+                    // flip 0 <-> 1
+                    code.pushInt(1);
+                    code.op(IXOR, -1);
+                }
+                return;
+        }
+        binaryCall(helper, expr.operator, "Z");
+    }
+    private void box(){
+        code.invoke(INVOKESTATIC, RUNTIME, "bool", "(Z)"+OBJECT_D);
+    }
+    private void binary(String helper, Token operator){
+        binaryCall(helper, operator, OBJECT_D);
+    }
+    private void binaryCall(String helper, Token operator, String result){
+        code.load(INTERPRETER);
+        token(operator);
+        code.invoke(INVOKESTATIC, RUNTIME, helper, BINARY_D+result);
+    }
+
+    private int[] allocateLocals(int slots){
+        int[] locals = new int[slots];
+        for(int i = 0 ; i < slots ; ++i){
+            locals[i] = code.allocateLocal();
+            // every local starts out as nil, which also keeps the verifier happy
+            code.op(ACONST_NULL, 1);
+            code.store(locals[i]);
+        }
+        return locals;
+    }
+
+    private void token(Token token){
+        constant(tokenConstants, token);
+        code.type(CHECKCAST, TOKEN);
+    }
+    private void constant(Map<Object,Integer> pool, Object value){
+        Integer index = pool.get(value);
+        if(index == null){
+            index = constants.size();
+            constants.add(value);
+            pool.put(value, index);
+        }
+        code.load(CONSTANTS);
+        code.pushInt(index);
+        code.op(AALOAD, -1);
+    }
+}
@@ -0,0 +1,125 @@
+package lite;
+
+// Static entry points used by the classes the Jit generates. Each one
+// takes the common all-numbers case inline and defers to the Interpreter
+// for everything else, so compiled code keeps the exact same semantics
+// and RuntimeError messages as the tree-walker. They are small on purpose
+// so the JVM inlines them into the compiled function.
+final class JitRuntime {
+    private JitRuntime(){}
+
+    static Object add(Object left, Object right, Interpreter interpreter, Token operator){
+        if(left instanceof Double && right instanceof Double) return (double)left + (double)right;
+        return interpreter.binary(operator, left, right);
+    }
+    static Object subtract(Object left, Object right, Interpreter interpreter, Token operator){
+        if(left instanceof Double && right instanceof Double) return (double)left - (double)right;
+        return interpreter.binary(operator, left, right);
+    }
+    static Object multiply(Object left, Object right, Interpreter interpreter, Token operator){
+        if(left instanceof Double && right instanceof Double) return (double)left * (double)right;
+        return interpreter.binary(operator, left, right);
+    }
+    static Object divide(Object left, Object right, Interpreter interpreter, Token operator){
+        if(left instanceof Double && right instanceof Double) return (double)left / (double)right;
+        return interpreter.binary(operator, left, right);
+    }
+    static Object binary(Object left, Object right, Interpreter interpreter, Token operator){
+        return interpreter.binary(operator, left, right);
+    }
+
+    // comparisons used as a branch condition skip the Boolean entirely
+    static boolean greater(Object left, Object right, Interpreter interpreter, Token operator){
+        if(left instanceof Double && right instanceof Double) return (double)left > (double)right;
+        return (boolean)interpreter.binary(operator, left, right);
+    }
+    static boolean greaterEqual(Object left, Object right, Interpreter interpreter, Token operator){
+        if(left instanceof Double && right instanceof Double) return (double)left >= (double)right;
+        return (boolean)interpreter.binary(operator, left, right);
+    }
+    static boolean less(Object left, Object right, Interpreter interpreter, Token operator){
+        if(left instanceof Double && right instanceof Double) return (double)left < (double)right;
+        return (boolean)interpreter.binary(operator, left, right);
+    }
+    static boolean lessEqual(Object left, Object right, Interpreter interpreter, Token operator){
+        if(left instanceof Double && right instanceof Double) return (double)left <= (double)right;
+        return (boolean)interpreter.binary(operator, left, right);
+    }
+    static boolean equal(Object left, Object right, Interpreter interpreter){
+        return interpreter.isEqual(left, right);
+    }
+
+    static Object unary(Object right, Interpreter interpreter, Token operator){
+        return interpreter.unary(operator, right);
+    }
+    static boolean isTruthy(Object value, Interpreter interpreter){
+        if(value instanceof Boolean) return (boolean)value;
+        return interpreter.isTruthy(value);
+    }
+    static Object bool(boolean value){
+        return value;
+    }
+
+    static double rangeBound(Object value, Token name){
+        return Interpreter.rangeBound(name, value);
+    }
+    static double rangeStep(Object value, Token name){
+        return Interpreter.rangeStep(name, value);
+    }
+    static boolean inRange(double i, double end, double step){
+        return Interpreter.inRange(i, end, step);
+    }
+
+    static Object getGlobal(Environment closure, int index, Token name){
+        return closure.getGlobal(index, name);
+    }
+    static Object assignGlobal(Object value, Environment closure, int index, Token name){
+        closure.assignGlobal(index, name, value);
+        return value;
+    }
+    static Object assignAt(Object value, Environment environment, int depth, int slot){
+        environment.assignAt(depth, slot, value);
+        return value;
+    }
+    static Object getCell(Environment environment, int depth, int slot){
+        return ((Cell)environment.getAt(depth, slot)).get();
+    }
+    static Object assignCell(Object value, Environment environment, int depth, int slot){
+        ((Cell)environment.getAt(depth, slot)).set(value);
+        return value;
+    }
+
+    static Object call(Object callee, Object[] arguments, Interpreter interpreter, Token paren){
+        LiteCallable function = callable(callee, arguments, paren);
+        try{
+            return function.call(interpreter, arguments);
+        }catch(RuntimeError error){
+            throw RuntimeError.at(paren, error);
+        }
+    }
+    static Object tailCall(Object callee, Object[] arguments, Interpreter interpreter, Token paren){
+        LiteCallable function = callable(callee, arguments, paren);
+        if(function instanceof LiteFunction) return interpreter.tailCall((LiteFunction)function, arguments);
+        try{
+            return function.call(interpreter, arguments);
+        }catch(RuntimeError error){
+            throw RuntimeError.at(paren, error);
+        }
+    }
+    private static LiteCallable callable(Object callee, Object[] arguments, Token paren){
+        if(!(callee instanceof LiteCallable)){
+            throw new RuntimeError(paren,
+                "Can only call functions and classes.");
+        }
+        LiteCallable function = (LiteCallable)callee;
+        if(arguments.length != function.arity()){
+            throw new RuntimeError(paren,
+                "Expected "+function.arity()+" arguments but got "+arguments.length+".");
+        }
+        return function;
+    }
+
+    static void print(Object value, Interpreter interpreter){
+        interpreter.out.println(interpreter.stringify(value));
+    }
+}
@@ -0,0 +1,59 @@
+package lite;
+
+import java.util.List;
+
+// A function body the Parser only skipped over. The declaration keeps an
+// empty body list and this records where the tokens of the real one are.
+// The first call parses them and runs the Optimizer and Resolver on the
+// result. Only top-level functions are lazy, so there is nothing around
+// the body to capture: a Resolver with no scopes, numbering globals in
+// the Names of the rest of the script, resolves it the same as an eager
+// parse does.
+final class LazyBody {
+    private final Scanner scanner;
+    // index of the first token after the '{'
+    private final int start;
+    private final int loopDepth;
+    // filled in as the passes reach the declaration
+    Optimizer optimizer = null;
+    Resolver resolver = null;
+    private boolean failed = false;
+
+    LazyBody(Scanner scanner, int start, int loopDepth){
+        this.scanner = scanner;
+        this.start = start;
+        this.loopDepth = loopDepth;
+    }
+
+    // the body of function, parsed first if it has not been yet
+    static List<Stmt> force(Stmt.Function function){
+        if(function.lazy == null) return function.body;
+        synchronized(function){
+            LazyBody lazy = function.lazy;
+            if(lazy != null){
+                lazy.complete(function);
+                function.lazy = null;
+            }
+        }
+        return function.body;
+    }
+
+    private void complete(Stmt.Function function){
+        // the syntax error was reported the first time
+        if(failed) throw syntaxError(function);
+
+        Parser parser = new Parser(scanner, true);
+        List<Stmt> body = parser.body(start, loopDepth);
+        if(parser.hadError()){
+            failed = true;
+            throw syntaxError(function);
+        }
+        if(optimizer != null) body = optimizer.optimize(body);
+        function.body.addAll(body);
+        resolver.resolveFunction(function);
+    }
+    private static RuntimeError syntaxError(Stmt.Function function){
+        return new RuntimeError(function.name,
+            "Syntax error in body of '"+function.name.lexeme+"'.");
+    }
+}
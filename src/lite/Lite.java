@@ -3,35 +3,93 @@ package lite;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
+import lite.vm.CompiledFunction;
+import lite.vm.VM;
+import lite.vm.VMError;
 
 public class Lite{
+    // part of every ScriptCache key, bump it whenever a change to the
+    // AST, Optimizer or Resolver changes what a script compiles to
+    static final String VERSION = "8";
 
-    private static final Interpreter interpreter = new Interpreter();
-    static boolean hadError=false;
-    static boolean hadRuntimeError=false;
+    private static final ErrorPrinter errors = new ErrorPrinter(System.err);
+    private static final Interpreter interpreter = new Interpreter(errors, System.out);
+    // set by --vm, runs scripts on the bytecode VM instead of the Interpreter
+    private static VM vm = null;
+    // set by -O0, -O1 or -O2
+    private static int optimizationLevel = 1;
+    // null after --no-cache
+    private static ScriptCache cache = ScriptCache.standard();
+    // set by --lazy, function bodies are parsed when first called
+    private static boolean lazy = false;
+    // set by --parallel-parse, large sources are parsed in segments on the common pool
+    private static boolean parallelParse = false;
+    // set by --flat, runs scripts as a FlatTree on the FlatInterpreter
+    private static boolean flat = false;
 
     public static void main(String[] args) throws IOException{
-        if(args.length>1){
-            System.out.println("Usage: jlite <script>");
-            System.exit(64);
-        }else if(args.length == 1){
-            runFile(args[0]);
+        String script = null;
+        for(String arg : args){
+            if(arg.equals("--vm")){
+                vm = new VM();
+                interpreter.globals.forEachGlobal(vm::defineGlobal);
+                vm.defineNatives();
+            }else if(arg.equals("--no-jit")){
+                Jit.enabled = false;
+            }else if(arg.equals("--no-cache")){
+                cache = null;
+            }else if(arg.equals("--lazy")){
+                lazy = true;
+            }else if(arg.equals("--parallel-parse")){
+                parallelParse = true;
+            }else if(arg.equals("--flat")){
+                flat = true;
+            }else if(arg.matches("-O[012]")){
+                optimizationLevel = arg.charAt(2) - '0';
+            }else if(script == null && !arg.startsWith("-")){
+                script = arg;
+            }else{
+                System.out.println("Usage: jlite [--vm] [--flat] [--no-jit] [--no-cache] [--lazy] [--parallel-parse] [-O0|-O1|-O2] [script]");
+                System.exit(64);
+            }
+        }
+        if(script != null){
+            runFile(script);
         } else{
             runPrompt();
         }
     }
 
+    // The file is mapped rather than read, the Scanner decodes its UTF-8
+    // in place so the source never has a copy on the heap.
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes,Charset.defaultCharset()));
+        ByteBuffer source;
+        try(FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)){
+            source = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        String key = null;
+        Script compiled = null;
+        if(cache != null){
+            key = cache.key(source, optimizationLevel);
+            compiled = cache.load(key);
+        }
+        if(compiled == null){
+            compiled = compile(new Scanner(source, errors));
+            // storing would parse every lazy body up front
+            if(compiled != null && cache != null && !lazy) cache.store(key, compiled);
+        }
+        if(compiled != null) execute(compiled);
         
-        if(hadError) System.exit(65);
-        if(hadRuntimeError) System.exit(70);
+        if(errors.hadError()) System.exit(65);
+        if(errors.hadRuntimeError()) System.exit(70);
     }
 
     private static void runPrompt() throws IOException{
@@ -42,21 +100,48 @@ public class Lite{
             System.out.print("\n>>> ");
             String line = reader.readLine();
             if(line == null) break;
-            run(line);
-            hadError=false;
+            Script compiled = compile(new Scanner(line, errors));
+            if(compiled != null) execute(compiled);
+            errors.reset();
         }
     }
 
-    private static void run(String source){
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
+    // parsed, optimized and resolved, null after a syntax error
+    private static Script compile(Scanner scanner){
+        // the VM and the Flattener convert every body before running anyway
+        Parser parser = new Parser(scanner, lazy && vm == null && !flat);
+        List<Stmt> statements = parallelParse
+            ? parser.parseParallel(ForkJoinPool.commonPool())
+            : parser.parse();
         
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
-        
-        if(hadError) return;
+        if(parser.hadError()) return null;
+
+        statements = new Optimizer(interpreter, optimizationLevel).optimize(statements);
+
+        Resolver resolver = new Resolver();
+        resolver.resolve(statements);
+        return new Script(statements, resolver.names());
+    }
 
-        interpreter.interpret(statements);
+    private static void execute(Script script){
+        if(vm != null){
+            BytecodeCompiler compiler = new BytecodeCompiler(errors, vm);
+            CompiledFunction function = compiler.compile(script.statements);
+            if(compiler.hadError()) return;
+            try{
+                vm.interpret(function);
+            }catch(VMError error){
+                errors.runtimeError(error.line(), error.getMessage());
+            }
+            return;
+        }
+
+        if(flat){
+            new FlatInterpreter(interpreter, new Flattener().flatten(script.statements, script.names)).interpret();
+            return;
+        }
+
+        interpreter.interpret(script.statements, script.names);
         
         // System.out.println(new AstPrinter().print(statements));
         
@@ -66,24 +151,4 @@ public class Lite{
         // System.out.println("");
         
     }
-
-    static void error(int line, String message){
-        report(line," ",message);
-    }
-    private static void report(int line, String where,String message){
-        System.err.println("[line "+line+"]:  Error "+where+": "+message);
-        hadError = true;
-    }
-    static void error(Token token, String message){
-        if(token.type == TokenType.EOF) 
-            report(token.line,"at end", message);
-        else 
-            report(token.line,"at '"+token.lexeme+"'", message);
-    }  
-    static void runtimeError(RuntimeError error){
-        System.err.println(
-            error.getMessage()+"\n[line "+error.token.line+"]"
-        );
-        hadRuntimeError = true;
-    }
 }
\ No newline at end of file
@@ -1,8 +1,24 @@
 package lite;
 
+import java.util.Arrays;
 import java.util.List;
 
 public interface LiteCallable {
     int arity();
     Object call(Interpreter interpreter, List<Object> arguments);    
+
+    // Entry points for callers that already checked the arity. Functions
+    // override them to take their arguments without building a List.
+    default Object call(Interpreter interpreter, Object[] arguments){
+        return call(interpreter, Arrays.asList(arguments));
+    }
+    default Object call0(Interpreter interpreter){
+        return call(interpreter, new Object[0]);
+    }
+    default Object call1(Interpreter interpreter, Object first){
+        return call(interpreter, new Object[]{first});
+    }
+    default Object call2(Interpreter interpreter, Object first, Object second){
+        return call(interpreter, new Object[]{first, second});
+    }
 }
@@ -3,8 +3,10 @@ package lite;
 import java.util.List;
 
 public class LiteFunction implements LiteCallable{
-    private final Stmt.Function declaration;
+    final Stmt.Function declaration;
     private final Environment closure;
+    // set once the declaration got hot and the Jit compiled it
+    private LiteCallable compiled = null;
 
     LiteFunction(Stmt.Function declaration, Environment closure){
         this.declaration = declaration;
@@ -13,14 +15,74 @@ public class LiteFunction implements LiteCallable{
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments){
-        Environment environment = new Environment(this.closure);
-        for(int i = 0 ; i < declaration.params.size() ; ++i){
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+        return call(interpreter, arguments.toArray());
+    }
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments){
+        return trampoline(interpreter, invoke(interpreter, arguments));
+    }
+    @Override
+    public Object call0(Interpreter interpreter){
+        if(isCompiled()) return trampoline(interpreter, compiled.call0(interpreter));
+
+        return trampoline(interpreter, run(interpreter, new Environment(this.closure,declaration.slots)));
+    }
+    @Override
+    public Object call1(Interpreter interpreter, Object first){
+        if(isCompiled()) return trampoline(interpreter, compiled.call1(interpreter, first));
+
+        Environment environment = new Environment(this.closure,declaration.slots);
+        bind(environment, 0, first);
+        return trampoline(interpreter, run(interpreter, environment));
+    }
+    @Override
+    public Object call2(Interpreter interpreter, Object first, Object second){
+        if(isCompiled()) return trampoline(interpreter, compiled.call2(interpreter, first, second));
+
+        Environment environment = new Environment(this.closure,declaration.slots);
+        bind(environment, 0, first);
+        bind(environment, 1, second);
+        return trampoline(interpreter, run(interpreter, environment));
+    }
+
+    // A body that ends in `return f(...)` hands back Interpreter.TAIL_CALL
+    // instead of calling f, the call is made here so the Java stack stays
+    // the same depth however long the chain of tail calls gets.
+    private static Object trampoline(Interpreter interpreter, Object result){
+        while(result == Interpreter.TAIL_CALL){
+            LiteFunction function = interpreter.takeTailCallee();
+            result = function.invoke(interpreter, interpreter.takeTailArguments());
+        }
+        return result;
+    }
+    // runs the body once, leaving any tail call to the trampoline
+    private Object invoke(Interpreter interpreter, Object[] arguments){
+        if(isCompiled()) return compiled.call(interpreter, arguments);
+
+        Environment environment = new Environment(this.closure,declaration.slots);
+        for(int i = 0 ; i < arguments.length ; ++i){
+            bind(environment, i, arguments[i]);
         }
-        try{
-            interpreter.executeBlock(declaration.body,environment);
-        }catch(Return returnValue){
-            return returnValue.value;
+        return run(interpreter, environment);
+    }
+    // a parameter an inner function captures goes in a Cell
+    private void bind(Environment environment, int parameter, Object argument){
+        boolean[] cells = declaration.cells;
+        if(cells != null && cells[parameter]) environment.defineAt(parameter, new Cell(argument));
+        else environment.defineAt(parameter, argument);
+    }
+    // checked first on every call, so also where a lazily parsed body gets parsed
+    private boolean isCompiled(){
+        if(compiled == null){
+            if(declaration.lazy != null) LazyBody.force(declaration);
+            compiled = Jit.tierUp(declaration, closure);
+        }
+        return compiled != null;
+    }
+    private Object run(Interpreter interpreter, Environment environment){
+        if(declaration.hoisted != null) Interpreter.hoist(declaration.hoisted, environment);
+        if(interpreter.executeBlock(declaration.body,environment) == Completion.RETURN){
+            return interpreter.takeReturnValue();
         }
         return null;
     }
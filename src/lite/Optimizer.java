@@ -0,0 +1,212 @@
+package lite;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Rewrites the statements returned by the Parser before they are resolved
+// or compiled. At -O1 operators over literals are folded, groupings are
+// unwrapped and branches behind a literal condition are dropped. -O2 also
+// removes statements that can never run or that have no effect. -O0 leaves
+// the tree exactly as parsed.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    // longer strings are left for the Interpreter to build when they are needed
+    private static final int MAX_FOLDED_STRING = 1024;
+    private static final Object UNFOLDED = new Object();
+
+    private final Interpreter interpreter;
+    private final int level;
+
+    Optimizer(Interpreter interpreter, int level){
+        this.interpreter = interpreter;
+        this.level = level;
+    }
+
+    // the condition the Optimizer leaves on loops that never test false,
+    // which the executors then skip evaluating
+    static boolean alwaysTrue(Expr condition){
+        return condition instanceof Expr.Literal
+            && Boolean.TRUE.equals(((Expr.Literal)condition).value);
+    }
+
+    List<Stmt> optimize(List<Stmt> statements){
+        if(level <= 0) return statements;
+        return optimizeAll(statements);
+    }
+
+    private List<Stmt> optimizeAll(List<Stmt> statements){
+        List<Stmt> optimized = new ArrayList<>(statements.size());
+        for(Stmt statement : statements){
+            Stmt result = optimize(statement);
+            if(result == null) continue;
+            optimized.add(result);
+            if(level >= 2 && (result instanceof Stmt.Return || result instanceof Stmt.Break)) break;
+        }
+        return optimized;
+    }
+    // statements optimized away come back as null
+    private Stmt optimize(Stmt stmt){
+        return stmt.accept(this);
+    }
+    // where a single statement is required an empty block stands in for nothing
+    private Stmt optimizeBranch(Stmt stmt){
+        Stmt result = optimize(stmt);
+        return result == null ? new Stmt.Block(new ArrayList<>()) : result;
+    }
+    private Expr optimize(Expr expr){
+        return expr.accept(this);
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt){
+        return new Stmt.Block(optimizeAll(stmt.statements));
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt){
+        Expr expression = optimize(stmt.expression);
+        if(level >= 2 && expression instanceof Expr.Literal) return null;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt){
+        if(stmt.lazy != null){
+            stmt.lazy.optimizer = this;
+            return stmt;
+        }
+        return new Stmt.Function(stmt.name, stmt.params, optimizeAll(stmt.body));
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt){
+        Expr condition = optimize(stmt.condition);
+        if(condition instanceof Expr.Literal){
+            if(interpreter.isTruthy(((Expr.Literal)condition).value)) return optimize(stmt.thenBranch);
+            return stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+        }
+        Stmt elseBranch = stmt.elseBranch == null ? null : optimizeBranch(stmt.elseBranch);
+        return new Stmt.If(condition, optimizeBranch(stmt.thenBranch), elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt){
+        return new Stmt.Print(optimize(stmt.expression));
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt){
+        Expr initializer = stmt.initializer == null ? null : optimize(stmt.initializer);
+        return new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt){
+        Expr condition = optimize(stmt.condition);
+        if(condition instanceof Expr.Literal){
+            if(!interpreter.isTruthy(((Expr.Literal)condition).value)) return null;
+            condition = new Expr.Literal(true);
+        }
+        return new Stmt.While(condition, optimizeBranch(stmt.body));
+    }
+
+    @Override
+    public Stmt visitForRangeStmt(Stmt.ForRange stmt){
+        Expr step = stmt.step == null ? null : optimize(stmt.step);
+        return new Stmt.ForRange(stmt.name, optimize(stmt.start), optimize(stmt.end),
+            step, optimizeBranch(stmt.body));
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt){
+        Expr value = stmt.value == null ? null : optimize(stmt.value);
+        return new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Stmt.Break stmt){
+        return stmt;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr){
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if(left instanceof Expr.Literal && right instanceof Expr.Literal){
+            Object folded = fold(expr.operator,
+                ((Expr.Literal)left).value, ((Expr.Literal)right).value);
+            if(folded != UNFOLDED) return new Expr.Literal(folded);
+        }
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    // the value of the operation, or UNFOLDED when it has to be left for
+    // runtime: it would raise an error there or build a very long string
+    private Object fold(Token operator, Object left, Object right){
+        if(operator.type == TokenType.STAR){
+            if(left instanceof String && right instanceof Double
+                && !smallRepeat((String)left, (double)right)) return UNFOLDED;
+            if(left instanceof Double && right instanceof String
+                && !smallRepeat((String)right, (double)left)) return UNFOLDED;
+        }
+        try{
+            return interpreter.binary(operator, left, right);
+        }catch(RuntimeError error){
+            return UNFOLDED;
+        }
+    }
+    private boolean smallRepeat(String text, double count){
+        return count >= 0 && text.length() * Math.floor(count) <= MAX_FOLDED_STRING;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr){
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        for(Expr argument : expr.arguments){
+            arguments.add(optimize(argument));
+        }
+        return new Expr.Call(optimize(expr.callee), expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr){
+        Expr left = optimize(expr.left);
+        if(left instanceof Expr.Literal){
+            if(interpreter.isTruthy(((Expr.Literal)left).value)) return optimize(expr.middle);
+            return optimize(expr.right);
+        }
+        return new Expr.Ternary(left, optimize(expr.middle), optimize(expr.right));
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr){
+        return new Expr.Assign(expr.name, optimize(expr.value));
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr){
+        Expr right = optimize(expr.right);
+        if(right instanceof Expr.Literal){
+            try{
+                return new Expr.Literal(interpreter.unary(expr.operator, ((Expr.Literal)right).value));
+            }catch(RuntimeError error){
+                // left for runtime to report
+            }
+        }
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr){
+        return expr;
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr){
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr){
+        return expr;
+    }
+}
@@ -0,0 +1,95 @@
+package lite;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// parallelFor and the parallel reductions: the indices from, from+1, ...
+// below to, counted like a range loop, are split in halves across the
+// common ForkJoinPool. Each piece calls the function on an Interpreter of
+// its own over the caller's globals, and a reduction combines the partial
+// results of the halves as they join, so nothing is shared but the globals.
+final class Parallel {
+    enum Reduction{
+        SUM("parallelSum"), MIN("parallelMin"), MAX("parallelMax");
+
+        final String name;
+
+        Reduction(String name){
+            this.name = name;
+        }
+    }
+
+    // runs function for every index, reduction null for parallelFor. The
+    // result of an empty range is 0 for a sum and nil for a min or max.
+    static Object run(Interpreter caller, Object from, Object to, Object function, Reduction reduction){
+        double start = Interpreter.rangeBound(null, from);
+        double end = Interpreter.rangeBound(null, to);
+        if(!(function instanceof LiteCallable) || ((LiteCallable)function).arity() != 1){
+            throw new RuntimeError(null, "Can only run functions of one parameter in parallel.");
+        }
+        long count = end > start ? (long)Math.ceil(end - start) : 0;
+        // pieces smaller than this cost more to hand out than to run
+        long size = Math.max(1, count / (8L*ForkJoinPool.getCommonPoolParallelism()));
+        Double result = ForkJoinPool.commonPool().invoke(
+            new Indices(caller, start, 0, count, size, (LiteCallable)function, reduction));
+        if(result == null && reduction == Reduction.SUM) return 0.0;
+        return result;
+    }
+
+    // calls function for start+from .. start+to-1 by halves
+    private static class Indices extends RecursiveTask<Double>{
+        private static final long serialVersionUID = 1L;
+
+        private final Interpreter caller;
+        private final double start;
+        private final long from;
+        private final long to;
+        private final long size;
+        private final LiteCallable function;
+        private final Reduction reduction;
+
+        Indices(Interpreter caller, double start, long from, long to, long size,
+                LiteCallable function, Reduction reduction){
+            this.caller = caller;
+            this.start = start;
+            this.from = from;
+            this.to = to;
+            this.size = size;
+            this.function = function;
+            this.reduction = reduction;
+        }
+
+        @Override
+        protected Double compute(){
+            if(to - from <= size) return piece();
+            long middle = (from + to) >>> 1;
+            Indices right = new Indices(caller, start, middle, to, size, function, reduction);
+            right.fork();
+            Double left = new Indices(caller, start, from, middle, size, function, reduction).compute();
+            return combine(left, right.join());
+        }
+        private Double piece(){
+            Interpreter interpreter = new Interpreter(caller);
+            Double result = null;
+            for(long i = from ; i < to ; ++i){
+                Object value = function.call1(interpreter, start + i);
+                if(reduction == null) continue;
+                if(!(value instanceof Double)){
+                    throw new RuntimeError(null, reduction.name+" needs a function returning numbers.");
+                }
+                result = combine(result, (Double)value);
+            }
+            return result;
+        }
+        // null is the result of no indices
+        private Double combine(Double left, Double right){
+            if(left == null) return right;
+            if(right == null) return left;
+            switch(reduction){
+                case SUM: return left + right;
+                case MIN: return Math.min(left, right);
+                default:  return Math.max(left, right);
+            }
+        }
+    }
+}
@@ -3,18 +3,41 @@ package lite;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import static lite.TokenType.*;
 
 class Parser{
     private static class ParseError extends RuntimeException{}
     
-    private final List<Token> tokens;
+    // tokens are pulled from the Scanner as the parse reaches them and
+    // only become Token objects when the AST keeps them, everything else
+    // works on their index and type
+    private final Scanner scanner;
+    private final TokenBuffer tokens;
     private int current = 0 ;
     private int loopDepth = 0 ;
+    // blocks and function bodies around the current token
+    private int blockDepth = 0 ;
+    // top level function bodies are only checked for balanced brackets and
+    // left to a LazyBody to parse on their first call
+    private final boolean lazy;
+    private boolean hadError = false;
+    // a parser for one segment of parseParallel sees EOF at limit and
+    // keeps its errors to itself
+    private int limit = Integer.MAX_VALUE;
+    private boolean silent = false;
 
 
-    Parser(List<Token> tokens){
-        this.tokens = tokens;
+    Parser(Scanner scanner){
+        this(scanner, false);
+    }
+    Parser(Scanner scanner, boolean lazy){
+        this.scanner = scanner;
+        this.tokens = scanner.tokens();
+        this.lazy = lazy;
+        // a LazyBody parses its tokens later
+        if(lazy) tokens.keep();
     }
 
     public List<Stmt> parse(){
@@ -24,6 +47,95 @@ class Parser{
         }
         return statements;
     }
+    // Same result as parse(), but the tokens are cut into segments at
+    // top-level declarations and the segments are parsed on pool at the same
+    // time. If any segment has an error the whole source is parsed again in
+    // order, so errors come out exactly as parse() reports them.
+    List<Stmt> parseParallel(ForkJoinPool pool){
+        tokens.keep();
+        scanner.scanTokens();
+        int[] cuts = segments(pool.getParallelism());
+        if(cuts.length <= 2) return parse();
+
+        List<List<Stmt>> parts = new ArrayList<>();
+        for(int i = 1 ; i < cuts.length ; ++i) parts.add(null);
+        pool.invoke(new Segments(cuts, 0, cuts.length-1, parts));
+
+        List<Stmt> statements = new ArrayList<>();
+        for(List<Stmt> part : parts){
+            if(part == null) return parse();
+            statements.addAll(part);
+        }
+        return statements;
+    }
+    // segment boundaries as token indices, the last one is the EOF
+    private int[] segments(int parallelism){
+        // segments smaller than this cost more to hand out than to parse
+        int size = Math.max(1 << 14, tokens.size() / (4*parallelism));
+        List<Integer> cuts = new ArrayList<>();
+        cuts.add(0);
+        int depth = 0;
+        for(int i = 0 ; i < tokens.size() ; ++i){
+            switch(tokens.type(i)){
+                case LEFT_BRACE: case LEFT_PAREN: depth++; break;
+                case RIGHT_BRACE: case RIGHT_PAREN: depth--; break;
+                case FN: case VAR:
+                    if(depth == 0 && i - cuts.get(cuts.size()-1) >= size) cuts.add(i);
+                    break;
+                default:
+            }
+        }
+        cuts.add(tokens.size()-1);
+        int[] result = new int[cuts.size()];
+        for(int i = 0 ; i < result.length ; ++i) result[i] = cuts.get(i);
+        return result;
+    }
+    // the statements between two cuts, or null if they don't parse cleanly
+    private List<Stmt> segment(int start, int end){
+        Parser parser = new Parser(scanner, lazy);
+        parser.current = start;
+        parser.limit = end;
+        parser.silent = true;
+        List<Stmt> statements = parser.parse();
+        return parser.hadError ? null : statements;
+    }
+    // parses segments from..to by halves
+    private class Segments extends RecursiveAction{
+        private static final long serialVersionUID = 1L;
+
+        private final int[] cuts;
+        private final int from;
+        private final int to;
+        private final List<List<Stmt>> parts;
+
+        Segments(int[] cuts, int from, int to, List<List<Stmt>> parts){
+            this.cuts = cuts;
+            this.from = from;
+            this.to = to;
+            this.parts = parts;
+        }
+
+        @Override
+        protected void compute(){
+            if(to - from == 1){
+                parts.set(from, segment(cuts[from], cuts[to]));
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Segments(cuts, from, middle, parts), new Segments(cuts, middle, to, parts));
+        }
+    }
+    // the statements of a body skipped by a lazy parse, start is the
+    // index of the token after its '{'
+    List<Stmt> body(int start, int loopDepth){
+        this.current = start;
+        this.loopDepth = loopDepth;
+        return block();
+    }
+    // a syntax error in this parse or in scanning its source
+    boolean hadError(){
+        return hadError || scanner.hadError();
+    }
     private Stmt declaration(){
         try{
             if(match(FN))  return function("function");
@@ -35,7 +147,8 @@ class Parser{
         }
     }
     private Stmt varDecl(){
-        Token name = consume(IDENTIFIER, "Expect variable name.");
+        consume(IDENTIFIER, "Expect variable name.");
+        Token name = previous();
 
         Expr initializer = null;
         if(match(EQUAL)){
@@ -45,7 +158,8 @@ class Parser{
         return new Stmt.Var(name, initializer);
     }
     private Stmt.Function function(String kind){
-        Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
+        consume(IDENTIFIER, "Expect " + kind + " name.");
+        Token name = previous();
         consume(LEFT_PAREN, "Expect '(' after "+kind+" name.");
         List<Token> parameters = new ArrayList<>();
         if(!check(RIGHT_PAREN)){
@@ -53,14 +167,53 @@ class Parser{
                 if(parameters.size()>=255){
                     error(peek(), "Can't have more than 255 parameters.");
                 }
-                parameters.add(consume(IDENTIFIER,"Expect parameter name."));
+                consume(IDENTIFIER,"Expect parameter name.");
+                parameters.add(previous());
             }while(match(COMMA));
         }
         consume(RIGHT_PAREN, "Expect ')' after parameters.");
         consume(LEFT_BRACE, "Expect '{' before "+kind+" body.");
+        // nested functions may capture locals, which the Resolver has to
+        // see before the enclosing function runs, so only these are lazy
+        if(lazy && blockDepth == 0){
+            int start = current;
+            skipBody();
+            Stmt.Function function = new Stmt.Function(name, parameters, new ArrayList<>());
+            function.lazy = new LazyBody(scanner, start, loopDepth);
+            return function;
+        }
         List<Stmt> body = block();
         return new Stmt.Function(name, parameters, body);
     }
+    // moves past the '}' that closes the body, checking that every bracket
+    // inside it is closed by the matching one
+    private void skipBody(){
+        // the open brackets, innermost last
+        List<TokenType> open = new ArrayList<>();
+        while(true){
+            switch(peekType()){
+                case LEFT_BRACE: case LEFT_PAREN:
+                    open.add(peekType());
+                    break;
+                case RIGHT_PAREN:
+                    if(open.isEmpty() || open.remove(open.size()-1) != LEFT_PAREN){
+                        throw error(peek(), "Unmatched ')'.");
+                    }
+                    break;
+                case RIGHT_BRACE:
+                    if(open.isEmpty()){
+                        advance();
+                        return;
+                    }
+                    if(open.remove(open.size()-1) != LEFT_BRACE) throw error(peek(), "Expect ')' before '}'.");
+                    break;
+                case EOF:
+                    throw error(peek(), "Expect '}' after block.");
+                default:
+            }
+            advance();
+        }
+    }
     private Stmt statement(){
         if(match(IF)) return ifStatement();
         if(match(FOR)) return forStatement();
@@ -92,8 +245,13 @@ class Parser{
     }
     private List<Stmt> block(){
         List<Stmt> statements = new ArrayList<>();
-        while(!check(RIGHT_BRACE) && !isAtEnd()){
-            statements.add(declaration());
+        blockDepth++;
+        try{
+            while(!check(RIGHT_BRACE) && !isAtEnd()){
+                statements.add(declaration());
+            }
+        }finally{
+            blockDepth--;
         }
         consume(RIGHT_BRACE,"Expect '}' after block.");
         return statements;
@@ -127,6 +285,7 @@ class Parser{
     }
     private Stmt forStatement(){
         consume(LEFT_PAREN, "Expect '(' after 'for'.");
+        if(check(IDENTIFIER) && checkNextIn()) return forRange();
 
         Stmt initializer;
         if(match(SEMICOLON)) initializer = null;
@@ -161,20 +320,42 @@ class Parser{
 
         return body;
     }
+    // for (i in start..end) or for (i in start..end:step)
+    private Stmt forRange(){
+        advance();
+        Token name = previous();
+        advance();
+        Expr start = expression();
+        consume(DOT_DOT, "Expect '..' after range start.");
+        Expr end = expression();
+        Expr step = null;
+        if(match(COLON)) step = expression();
+        consume(RIGHT_PAREN, "Expect ')' after for range.");
+
+        Stmt body;
+        try{
+            loopDepth++;
+            body = statement();
+        }finally{
+            loopDepth--;
+        }
+        return new Stmt.ForRange(name, start, end, step, body);
+    }
     private Stmt breakStatement(){
-        Token breakToken= previous();
+        int keyword = current-1;
         consume(SEMICOLON, "Expect ';' after 'break'.");
-        if(loopDepth <= 0) throw error(breakToken, "Cannot use 'break' statement outside of a loop.");
+        if(loopDepth <= 0) throw error(tokens.token(keyword), "Cannot use 'break' statement outside of a loop.");
         return new Stmt.Break();
     }
     private Expr expression(){
         return assignment();
     }
     private Expr assignment(){
-        Expr expr = equality();
+        Expr expr = binary(1);
         
         if(match(EQUAL)){
-            Token equals = previous();
+            // kept for the error only, the value may take the token with it
+            Token equals = expr instanceof Expr.Variable ? null : previous();
             Expr value   = assignment();
 
             if(expr instanceof Expr.Variable){
@@ -186,67 +367,46 @@ class Parser{
         }
         return expr;
     }
-    private Expr equality(){
-        Expr expr = logComparison();
-        while(match(EQUAL_EQUAL,BANG_EQUAL)){
-            Token operator = previous();
-            Expr right = logComparison();
-            expr = new Expr.Binary(expr,operator,right);
-        }
-        return expr;
-    }
-    private Expr logComparison(){
-        Expr expr = bitComparison();
-        while(match(AND,OR)){
-            Token operator = previous();
-            Expr right = bitComparison();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
-    }
-    private Expr bitComparison(){
-        Expr expr = comparison();
-        while(match(BIT_AND,BIT_XOR,BIT_OR)){
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
-    }
-    private Expr comparison(){
-        Expr expr = term();
-        while(match(LESS,GREATER,LESS_EQUAL,GREATER_EQUAL)){
-            Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
-    }
-    private Expr term(){
-        Expr expr = factor();
-        while(match(MINUS,PLUS)){
-            Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
+    // Binary operators are parsed by precedence climbing over this table,
+    // indexed by TokenType ordinal. 0 means the token is not a binary
+    // operator. The levels are the grammar's, from equality (loosest) to
+    // factor (tightest), and every one of them associates to the left.
+    private static final byte[] PRECEDENCE = new byte[TokenType.values().length];
+    static{
+        TokenType[][] levels = {
+            {EQUAL_EQUAL, BANG_EQUAL},
+            {AND, OR},
+            {BIT_AND, BIT_XOR, BIT_OR},
+            {LESS, GREATER, LESS_EQUAL, GREATER_EQUAL},
+            {MINUS, PLUS},
+            {STAR, SLASH}
+        };
+        for(int level = 0 ; level < levels.length ; ++level){
+            for(TokenType type : levels[level]) PRECEDENCE[type.ordinal()] = (byte)(level+1);
         }
-        return expr;
     }
-    private Expr factor(){
+    // an operand followed by every operator binding at least as tight as minimum
+    private Expr binary(int minimum){
         Expr expr = unary();
-        while(match(STAR,SLASH)){
+        while(true){
+            int precedence = PRECEDENCE[peekType().ordinal()];
+            if(precedence < minimum || precedence == 0) return expr;
+            advance();
             Token operator = previous();
-            Expr right = unary();
+            Expr right = binary(precedence+1);
             expr = new Expr.Binary(expr, operator, right);
         }
-        return expr;
     }
     private Expr unary(){
-        if(match(BANG,MINUS,BIT_NOT)){
-            Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator,right);
+        switch(peekType()){
+            case BANG: case MINUS: case BIT_NOT:
+                advance();
+                Token operator = previous();
+                Expr right = unary();
+                return new Expr.Unary(operator,right);
+            default:
+                return call();
         }
-        return call();
     }
     private Expr call(){
         Expr expr = primary();
@@ -271,14 +431,14 @@ class Parser{
                 arguments.add(expression());
             }while(match(COMMA));
         }
-        Token paren = consume(RIGHT_PAREN,"Expect ')' after arguments.");
-        return new Expr.Call(callee, paren,arguments);
+        consume(RIGHT_PAREN,"Expect ')' after arguments.");
+        return new Expr.Call(callee, previous(), arguments);
     }
     private Expr primary(){
         if(match(FALSE)) return new Expr.Literal(false);
         if(match(TRUE)) return new Expr.Literal(true);
         if(match(NIL)) return new Expr.Literal(null);
-        if(match(NUMBER,STRING)) return new Expr.Literal(previous().literal);
+        if(match(NUMBER) || match(STRING)) return new Expr.Literal(tokens.literal(current-1));
         if(match(IDENTIFIER)) return new Expr.Variable(previous());
     
 
@@ -297,47 +457,74 @@ class Parser{
         throw error(peek(),"Expected expression.");
     }
 
-    private boolean match(TokenType... types){
-        for(TokenType type: types){
-            if(check(type)){
-                advance();
-                return true;
-            }
+    private boolean match(TokenType type){
+        if(check(type)){
+            advance();
+            return true;
         }
         return false;
     }
     private boolean check(TokenType type){
         if(isAtEnd()) return false;
-        return tokens.get(current).type == type;
+        return peekType() == type;
+    }
+    // `in` is only a keyword after a range loop's variable, a name elsewhere
+    private boolean checkNextIn(){
+        if(current+1 >= limit) return false;
+        int next = scanTo(current+1);
+        return tokens.type(next) == IDENTIFIER && tokens.lexeme(next).equals("in");
     }
     private Token peek(){
-        return tokens.get(current);
+        return tokens.token(scanTo(current));
+    }
+    private TokenType peekType(){
+        if(current >= limit) return EOF;
+        return tokens.type(scanTo(current));
     }
     private boolean isAtEnd(){
-        return peek().type == EOF;
+        return peekType() == EOF;
     }
-    private Token advance(){
+    private void advance(){
         if(!isAtEnd()) current++;
-        return previous();
     }
+    // the only place a Token is made, for the AST to keep
     private Token previous(){
-        return tokens.get(current-1);
+        return tokens.token(current-1);
     }
-    private Token consume(TokenType type,String message){
-        if(check(type)) return advance();
+    private TokenType previousType(){
+        return tokens.type(current-1);
+    }
+    // index, once the Scanner got that far
+    private int scanTo(int index){
+        while(index >= tokens.size()){
+            // nothing before previous() is looked at again
+            tokens.release(current-1);
+            scanner.scanNext();
+        }
+        return index;
+    }
+    private void consume(TokenType type,String message){
+        if(check(type)){
+            advance();
+            return;
+        }
         throw error(peek(),message);
     }
 
     private ParseError error(Token token, String message){
-        Lite.error(token,message);
+        hadError = true;
+        if(!silent){
+            String where = token.type == EOF ? "at end" : "at '"+token.lexeme+"'";
+            scanner.errors.syntaxError(token.line, where, message);
+        }
         return new ParseError();
     }
     private void synchronize(){
         advance();
         while(!isAtEnd()){
-            if(previous().type==SEMICOLON) return ;
+            if(previousType()==SEMICOLON) return ;
             
-            switch (peek().type) {
+            switch (peekType()) {
                 case CLASS:
                 case FN:
                 case VAR:
@@ -0,0 +1,463 @@
+package lite;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Static pass between the Parser and the Interpreter: every local variable
+// gets a (depth, slot) pair so the Interpreter can reach it with a fixed
+// number of hops and an array index instead of hashing its name at each
+// level of the environment chain. Anything not found in a local scope is
+// left with depth -1 and a slot numbering its name in the Globals.Names
+// of the compilation, which a run links to the globals.
+//
+// Only a function call, or a block at the top level, gets an Environment
+// of its own, its frame. The blocks nested in it keep their variables in
+// slots of that frame, past the ones of the enclosing scopes and reused
+// once the block ends, so running a block or a loop body allocates nothing
+// and a local is always at depth 0.
+//
+// Functions are closure converted: a function only keeps the variables of
+// enclosing functions it actually uses, listed in its `captures`, instead
+// of the whole chain of Environments it was declared in. A captured
+// variable lives in a Cell shared by its own scope and every closure that
+// captured it, and each node that touches it is marked `cell`.
+//
+// A name declared once in a block or function body gets its slot when the
+// scope begins, so a function can call one declared after it, as it could
+// when every lookup went by name at run time. Code before the declaration
+// in the same function still looks past it, the variable does not exist
+// there yet. Only a closure made before the declaration can reach it, and
+// that closure needs its Cell early: the scope makes those Cells on entry
+// and lists them in `hoisted`. Until the declaration runs, such a Cell
+// leads on to whatever the name means outside the scope, so a closure
+// called before it still sees the enclosing variable or global.
+class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    private static class Variable{
+        final int slot;
+        // false until the statement declaring a hoisted variable is reached
+        boolean declared = true;
+        // captured before it was declared
+        boolean early = false;
+        // of the declaration of a hoisted variable
+        int line = 0;
+        boolean captured = false;
+        // the nodes of its own function that declare, read or assign it,
+        // marked once the scope ends and it is known to live in a Cell
+        final List<Object> uses = new ArrayList<>();
+
+        Variable(int slot){
+            this.slot = slot;
+        }
+    }
+    // one per block, function or loop initializer
+    private static class Scope{
+        final Map<String,Variable> variables = new HashMap<>();
+        // name -> variable, in slot order
+        final Map<String,Variable> hoisted = new LinkedHashMap<>();
+        // the scope whose Environment holds the variables, possibly this one
+        final Scope frame;
+        // the slot the next variable declared here gets
+        int next;
+        // slots the Environment needs, counted on the frame only
+        int size = 0;
+
+        Scope(Scope enclosing){
+            this.frame = enclosing == null ? this : enclosing.frame;
+            this.next = enclosing == null ? 0 : enclosing.next;
+        }
+    }
+    // one per function body being resolved
+    private static class FunctionScope{
+        final FunctionScope enclosing;
+        // index in scopes of the scope holding the parameters
+        final int base;
+        // captured variable -> index in the closure
+        final Map<Variable,Integer> captures = new LinkedHashMap<>();
+        // where each one is found when the function is declared, as
+        // (depth, slot) pairs from the declaring environment
+        final List<Integer> sources = new ArrayList<>();
+
+        FunctionScope(FunctionScope enclosing, int base){
+            this.enclosing = enclosing;
+            this.base = base;
+        }
+    }
+    private final List<Scope> scopes = new ArrayList<>();
+    private final Globals.Names names;
+    // innermost function around the statement being resolved, null at top level
+    private FunctionScope function = null;
+
+    Resolver(){
+        this(new Globals.Names());
+    }
+    // for a lazy body, which adds to the names of the rest of its script
+    Resolver(Globals.Names names){
+        this.names = names;
+    }
+
+    // the globals the resolved code refers to
+    Globals.Names names(){
+        return names;
+    }
+
+    void resolve(List<Stmt> statements){
+        for(Stmt statement : statements){
+            resolve(statement);
+        }
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt){
+        beginScope();
+        hoist(stmt.statements);
+        resolve(stmt.statements);
+        stmt.hoisted = hoisted();
+        stmt.slots = endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt){
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt){
+        // declared before its body so the function can call itself
+        Variable variable = declare(stmt.name, stmt);
+        if(variable != null){
+            stmt.slot = variable.slot;
+            variable.uses.add(stmt);
+        }
+        // Lazy bodies only come from the top level, where there is nothing
+        // to capture. LazyBody resolves them with a Resolver of their own.
+        if(stmt.lazy != null){
+            stmt.lazy.resolver = new Resolver(names);
+            stmt.captures = new int[0];
+            return null;
+        }
+        resolveFunction(stmt);
+        return null;
+    }
+    // the parameters and body of stmt, in a scope of their own
+    void resolveFunction(Stmt.Function stmt){
+        FunctionScope enclosing = function;
+        function = new FunctionScope(enclosing, scopes.size());
+        Scope scope = new Scope(null);
+        scopes.add(scope);
+        Variable[] params = new Variable[stmt.params.size()];
+        for(int i = 0 ; i < params.length ; ++i){
+            // parameter i always lives in slot i, a repeated name
+            // shadows the earlier one just like the last define did
+            params[i] = new Variable(scope.next++);
+            scope.variables.put(stmt.params.get(i).lexeme, params[i]);
+        }
+        scope.size = scope.next;
+        hoist(stmt.body);
+        resolve(stmt.body);
+        stmt.hoisted = hoisted();
+        for(int i = 0 ; i < params.length ; ++i){
+            if(!params[i].captured) continue;
+            if(stmt.cells == null) stmt.cells = new boolean[params.length];
+            stmt.cells[i] = true;
+        }
+        stmt.slots = endScope();
+
+        stmt.captures = new int[function.sources.size()];
+        for(int i = 0 ; i < stmt.captures.length ; ++i){
+            stmt.captures[i] = function.sources.get(i);
+        }
+        function = enclosing;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt){
+        resolve(stmt.condition);
+        resolve(stmt.thenBranch);
+        if(stmt.elseBranch != null) resolve(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt){
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt){
+        // the initializer still sees any outer variable of the same name
+        if(stmt.initializer != null) resolve(stmt.initializer);
+        Variable variable = declare(stmt.name, stmt);
+        if(variable != null){
+            stmt.slot = variable.slot;
+            variable.uses.add(stmt);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt){
+        resolve(stmt.condition);
+        resolve(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitForRangeStmt(Stmt.ForRange stmt){
+        resolve(stmt.start);
+        resolve(stmt.end);
+        if(stmt.step != null) resolve(stmt.step);
+        // the loop variable gets a scope of its own around the body
+        beginScope();
+        Variable variable = declare(stmt.name, stmt);
+        stmt.slot = variable.slot;
+        variable.uses.add(stmt);
+        resolve(stmt.body);
+        stmt.slots = endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt){
+        if(stmt.value != null) resolve(stmt.value);
+        // nothing runs after a return, so a returned call is always in
+        // tail position and LiteFunction can run it without nesting
+        stmt.tailCall = function != null && stmt.value instanceof Expr.Call;
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt){
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr){
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr){
+        resolve(expr.callee);
+        for(Expr argument : expr.arguments){
+            resolve(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr){
+        resolve(expr.left);
+        resolve(expr.middle);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr){
+        resolve(expr.value);
+        for(int i = scopes.size()-1 ; i >= 0 ; --i){
+            Variable variable = scopes.get(i).variables.get(expr.name.lexeme);
+            if(variable == null) continue;
+            if(function == null || i >= function.base){
+                if(!variable.declared) continue;
+                expr.depth = 0;
+                expr.slot = variable.slot;
+                variable.uses.add(expr);
+            }else{
+                expr.depth = 1;
+                expr.slot = capture(function, variable, i);
+                expr.cell = true;
+            }
+            return null;
+        }
+        expr.slot = names.index(expr.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr){
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr){
+        for(int i = scopes.size()-1 ; i >= 0 ; --i){
+            Variable variable = scopes.get(i).variables.get(expr.name.lexeme);
+            if(variable == null) continue;
+            if(function == null || i >= function.base){
+                if(!variable.declared) continue;
+                expr.depth = 0;
+                expr.slot = variable.slot;
+                variable.uses.add(expr);
+            }else{
+                expr.depth = 1;
+                expr.slot = capture(function, variable, i);
+                expr.cell = true;
+            }
+            return null;
+        }
+        expr.slot = names.index(expr.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr){
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr){
+        return null;
+    }
+
+    private void resolve(Stmt stmt){
+        stmt.accept(this);
+    }
+    private void resolve(Expr expr){
+        expr.accept(this);
+    }
+    // gives every name declared exactly once directly in statements its
+    // slot now, undeclared until its statement is resolved
+    private void hoist(List<Stmt> statements){
+        Scope scope = scopes.get(scopes.size()-1);
+        Map<String,Integer> declarations = new HashMap<>();
+        for(Stmt statement : statements){
+            Token name = declared(statement);
+            if(name != null) declarations.merge(name.lexeme, 1, Integer::sum);
+        }
+        for(Stmt statement : statements){
+            Token name = declared(statement);
+            // a parameter of the same name is already there
+            if(name == null || declarations.get(name.lexeme) != 1
+                || scope.variables.containsKey(name.lexeme)) continue;
+            Variable variable = new Variable(scope.next++);
+            variable.declared = false;
+            variable.line = name.line;
+            scope.variables.put(name.lexeme, variable);
+            scope.hoisted.put(name.lexeme, variable);
+            scope.frame.size = Math.max(scope.frame.size, scope.next);
+        }
+    }
+    private static Token declared(Stmt statement){
+        if(statement instanceof Stmt.Var) return ((Stmt.Var)statement).name;
+        if(statement instanceof Stmt.Function) return ((Stmt.Function)statement).name;
+        return null;
+    }
+    // The variables of the current scope that need a Cell on entry, null
+    // for none. Each is four ints: its slot, then where the name leads
+    // until it is declared, as depth and slot, -1 and the global's index
+    // in names, and the line of its declaration for errors there.
+    private int[] hoisted(){
+        Scope scope = scopes.get(scopes.size()-1);
+        List<Integer> hoisted = new ArrayList<>();
+        scope.hoisted.forEach((name, variable) -> {
+            if(!variable.early) return;
+            hoisted.add(variable.slot);
+            outer(name, scopes.size()-1, hoisted);
+            hoisted.add(variable.line);
+        });
+        if(hoisted.isEmpty()) return null;
+        int[] entries = new int[hoisted.size()];
+        for(int i = 0 ; i < entries.length ; ++i) entries[i] = hoisted.get(i);
+        return entries;
+    }
+    // where name leads from the scope around scopes[index], resolved like
+    // a variable there, a local of the same frame made to live in a Cell
+    private void outer(String name, int index, List<Integer> where){
+        for(int i = index-1 ; i >= 0 ; --i){
+            Variable variable = scopes.get(i).variables.get(name);
+            if(variable == null) continue;
+            if(function == null || i >= function.base){
+                if(!variable.declared) continue;
+                variable.captured = true;
+                where.add(0);
+                where.add(variable.slot);
+            }else{
+                where.add(1);
+                where.add(capture(function, variable, i));
+            }
+            return;
+        }
+        where.add(-1);
+        where.add(names.index(name));
+    }
+    private void beginScope(){
+        scopes.add(new Scope(scopes.isEmpty() ? null : scopes.get(scopes.size()-1)));
+    }
+    // returns how many slots the scope's Environment needs, 0 when it
+    // has none of its own
+    private int endScope(){
+        Scope scope = scopes.remove(scopes.size()-1);
+        for(Variable variable : scope.variables.values()){
+            if(!variable.captured) continue;
+            for(Object use : variable.uses) markCell(use);
+        }
+        return scope.frame == scope ? scope.size : 0;
+    }
+    private static void markCell(Object use){
+        if(use instanceof Expr.Variable) ((Expr.Variable)use).cell = true;
+        else if(use instanceof Expr.Assign) ((Expr.Assign)use).cell = true;
+        else if(use instanceof Stmt.Var) ((Stmt.Var)use).cell = true;
+        else if(use instanceof Stmt.ForRange) ((Stmt.ForRange)use).cell = true;
+        else ((Stmt.Function)use).cell = true;
+    }
+    // index of variable, declared in scopes[index] outside of target, in
+    // target's closure, adding it to the closures in between as needed
+    private int capture(FunctionScope target, Variable variable, int index){
+        Integer slot = target.captures.get(variable);
+        if(slot != null) return slot;
+
+        variable.captured = true;
+        if(!variable.declared) variable.early = true;
+        // from where the function is declared the variable is either in
+        // the same frame or in the closure right outside it
+        if(target.enclosing == null || index >= target.enclosing.base){
+            target.sources.add(0);
+            target.sources.add(variable.slot);
+        }else{
+            int outer = capture(target.enclosing, variable, index);
+            target.sources.add(1);
+            target.sources.add(outer);
+        }
+        slot = target.captures.size();
+        target.captures.put(variable, slot);
+        return slot;
+    }
+    // null for a global
+    private Variable declare(Token name, Stmt declaration){
+        if(scopes.isEmpty()) return null;
+
+        Scope scope = scopes.get(scopes.size()-1);
+        // redeclaring a name in the same scope keeps its slot, and its Cell
+        Variable variable = scope.variables.get(name.lexeme);
+        if(variable == null){
+            variable = new Variable(scope.next++);
+            scope.variables.put(name.lexeme, variable);
+            scope.frame.size = Math.max(scope.frame.size, scope.next);
+            return variable;
+        }
+        if(!variable.declared){
+            variable.declared = true;
+            // one captured early finds its Cell already in the slot, just
+            // like a redeclaration does
+            if(!variable.early) return variable;
+        }
+        if(declaration instanceof Stmt.Var){
+            ((Stmt.Var)declaration).redeclaration = true;
+        }else{
+            ((Stmt.Function)declaration).redeclaration = true;
+        }
+        return variable;
+    }
+}
@@ -7,4 +7,17 @@ public class RuntimeError extends RuntimeException{
         super(message);
         this.token = token;
     }
+    // for natives outside this package, which have no token either
+    public RuntimeError(String message){
+        this(null, message);
+    }
+
+    // Natives throw without a token, having none. The call that ran one
+    // gives the error its paren, for the line.
+    static RuntimeError at(Token paren, RuntimeError error){
+        if(error.token != null) return error;
+        RuntimeError located = new RuntimeError(paren, error.getMessage());
+        located.setStackTrace(error.getStackTrace());
+        return located;
+    }
 }
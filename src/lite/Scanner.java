@@ -2,55 +2,67 @@ package lite;
 
 import static lite.TokenType.*;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HexFormat;
-import java.util.List;
-import java.util.Map;
 
+// Reads UTF-8 source straight from a ByteBuffer, usually a mapping of the
+// script file, so the program text is never copied onto the heap. The
+// language's syntax is all ASCII, other bytes can only show up inside
+// strings and comments. Tokens are written into a TokenBuffer as offsets
+// into the source, nothing is decoded until the Parser needs a lexeme.
 public class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private final ByteBuffer source;
+    private final TokenBuffer tokens;
+    // the Parsers of this source report to the same sink
+    final ErrorSink errors;
+    private boolean hadError = false;
     private int start = 0;
     private int current = 0;
     private int line = 1;
-    private static final Map<String,TokenType> keywords;
-    static{
-        keywords = new HashMap<>();
-        keywords.put("and"   , AND);
-        keywords.put("class" , CLASS);
-        keywords.put("else"  , ELSE);
-        keywords.put("false", FALSE);
-        keywords.put("for", FOR);
-        keywords.put("fn", FN);
-        keywords.put("if", IF);
-        keywords.put("nil", NIL);
-        keywords.put("or", OR);
-        keywords.put("print", PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super", SUPER);
-        keywords.put("this", THIS);
-        keywords.put("true", TRUE);
-        keywords.put("var", VAR);
-        keywords.put("while", WHILE);
-        keywords.put("break", BREAK);
-    }
+    // so a name is one String throughout this source
+    private final SymbolTable symbols = new SymbolTable();
     
-    Scanner(String source){
+    Scanner(ByteBuffer source, ErrorSink errors){
         this.source = source;
+        this.tokens = new TokenBuffer(source);
+        this.errors = errors;
+    }
+    Scanner(String source, ErrorSink errors){
+        this(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)), errors);
+    }
+
+    // the buffer scanNext() appends to
+    TokenBuffer tokens(){
+        return tokens;
+    }
+
+    TokenBuffer scanTokens(){
+        while(scanNext());
+        return tokens;
     }
 
-    List<Token> scanTokens(){
+    // Scans just far enough to add one more token to the buffer, the
+    // Parser pulls tokens as it reaches them. Adds EOF once the source is
+    // exhausted and returns false from then on.
+    boolean scanNext(){
+        if(tokens.size() > 0 && tokens.type(tokens.size()-1) == EOF) return false;
+        int count = tokens.size();
         while(!isAtEnd()){
             start = current;
             scanToken();
+            if(tokens.size() > count) return true;
         }
-        tokens.add(new Token(EOF,"",null,line));
-        return tokens;
+        tokens.add(EOF, current, 0, line, null);
+        return true;
+    }
+
+    boolean hadError(){
+        return hadError;
     }
 
     boolean isAtEnd(){
-        return current >=source.length();
+        return current >= source.limit();
     }
 
     private void scanToken(){
@@ -61,7 +73,7 @@ public class Scanner {
             case '{': addToken(LEFT_BRACE);break;
             case '}': addToken(RIGHT_BRACE);break;
             case ',': addToken(COMMA);break;
-            case '.': addToken(DOT);break;
+            case '.': addToken(match('.')?DOT_DOT:DOT);break;
             case '-': addToken(MINUS);break;
             case '+': addToken(PLUS);break;
             case ';': addToken(SEMICOLON);break;
@@ -99,36 +111,47 @@ public class Scanner {
                 }else if(isAlpha(c)){
                     identifier();    
                 }else{
-                    Lite.error(line,"Unexpected character."); 
+                    // one error for the whole of a multi-byte character
+                    while(isContinuationByte(peek())) advance();
+                    error("Unexpected character."); 
                 }
                 break;
         }
     }
 
+    // bytes come back as chars 0-255, anything above 127 is part of a
+    // multi-byte UTF-8 sequence and matches none of the ASCII tests
     private char advance(){
-        return source.charAt(current++);
+        return charAt(current++);
     }
     private boolean match(char expected){
         if(isAtEnd()) return false;
-        if(source.charAt(current)!=expected) return false;
+        if(charAt(current)!=expected) return false;
 
         current++;
         return true;
     }
     private char peek(){
         if(isAtEnd()) return '\0';
-        return source.charAt(current);
+        return charAt(current);
     }
     private char peekNext(){
-        if(current+1 >= source.length()) return '\0';
-        return source.charAt(current+1);
+        if(current+1 >= source.limit()) return '\0';
+        return charAt(current+1);
+    }
+    private char charAt(int index){
+        return (char)(source.get(index) & 0xff);
+    }
+    private String substring(int from, int to){
+        byte[] bytes = new byte[to-from];
+        source.get(from, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
     }
     private void addToken(TokenType type){
         addToken(type,null);
     }
     private void addToken(TokenType type, Object literal){
-        String text = source.substring(start,current);
-        tokens.add(new Token(type,text,literal,line));
+        tokens.add(type, start, current-start, line, literal);
     }
     private void string(){
         while(peek()!='"' && !isAtEnd()){
@@ -136,40 +159,104 @@ public class Scanner {
             advance();
         }
         if(isAtEnd()){
-            Lite.error(line, "Unterminated string.");
+            error("Unterminated string.");
             return;
         }
         advance();
 
-        String value = source.substring(start+1,current-1);
+        String value = substring(start+1,current-1);
         addToken(STRING,value);
     }
     private void number(){
         while(isDigit(peek())) advance();
-        if(peek()=='.' && isDigit(peekNext())) advance();
-        while(isDigit(peek())) advance();
-        addToken(NUMBER,Double.parseDouble(source.substring(start,current)));
+        if(peek()=='.' && isDigit(peekNext())){
+            advance();
+            while(isDigit(peek())) advance();
+            addToken(NUMBER,Double.parseDouble(substring(start,current)));
+            return;
+        }
+        addToken(NUMBER,wholeNumber());
+    }
+    // up to 15 digits fit a double exactly, no need to go through a String
+    private double wholeNumber(){
+        if(current-start > 15) return Double.parseDouble(substring(start,current));
+        long value = 0;
+        for(int i = start ; i < current ; ++i) value = value*10 + (charAt(i)-'0');
+        return value;
     }
     private void hexNumber(){
         if(!isHexchar(peek())){
-            Lite.error(line,"Unterminated hexadecimal number.");
+            error("Unterminated hexadecimal number.");
             return;
         } 
 
         while(isHexchar(peek())) advance();
         try{
-            addToken(NUMBER,(double)HexFormat.fromHexDigitsToLong(source.substring(start+2,current)));
+            addToken(NUMBER,(double)HexFormat.fromHexDigitsToLong(substring(start+2,current)));
         } catch(IllegalArgumentException error){
-            Lite.error(line,"Too long Hexadecimal digit, maximum supported is 16 digits.");
+            error("Too long Hexadecimal digit, maximum supported is 16 digits.");
         }
     }
     private void identifier(){
         while(isAlphaNum(peek())) advance();
 
-        String text = source.substring(start,current);
-        TokenType type = keywords.get(text);
-        if (type == null) type = IDENTIFIER;
-        addToken(type);
+        TokenType type = keyword();
+        if(type == IDENTIFIER){
+            addToken(type, symbols.intern(source, start, current-start));
+        }else{
+            addToken(type);
+        }
+    }
+    // Matches keywords against the source bytes without building a
+    // String: the first one or two characters pick the only keyword it
+    // could be, then the rest is compared in place.
+    private TokenType keyword(){
+        switch(charAt(start)){
+            case 'a': return checkKeyword(1, "nd", AND);
+            case 'b': return checkKeyword(1, "reak", BREAK);
+            case 'c': return checkKeyword(1, "lass", CLASS);
+            case 'e': return checkKeyword(1, "lse", ELSE);
+            case 'f':
+                if(current-start > 1){
+                    switch(charAt(start+1)){
+                        case 'a': return checkKeyword(2, "lse", FALSE);
+                        case 'n': return checkKeyword(2, "", FN);
+                        case 'o': return checkKeyword(2, "r", FOR);
+                        default: // supress warning
+                    }
+                }
+                break;
+            case 'i': return checkKeyword(1, "f", IF);
+            case 'n': return checkKeyword(1, "il", NIL);
+            case 'o': return checkKeyword(1, "r", OR);
+            case 'p': return checkKeyword(1, "rint", PRINT);
+            case 'r': return checkKeyword(1, "eturn", RETURN);
+            case 's': return checkKeyword(1, "uper", SUPER);
+            case 't':
+                if(current-start > 1){
+                    switch(charAt(start+1)){
+                        case 'h': return checkKeyword(2, "is", THIS);
+                        case 'r': return checkKeyword(2, "ue", TRUE);
+                        default: // supress warning
+                    }
+                }
+                break;
+            case 'v': return checkKeyword(1, "ar", VAR);
+            case 'w': return checkKeyword(1, "hile", WHILE);
+            default: // supress warning
+        }
+        return IDENTIFIER;
+    }
+    private TokenType checkKeyword(int offset, String rest, TokenType type){
+        if(current-start != offset+rest.length()) return IDENTIFIER;
+        for(int i = 0 ; i < rest.length() ; ++i){
+            if(charAt(start+offset+i) != rest.charAt(i)) return IDENTIFIER;
+        }
+        return type;
+    }
+    private void error(String message){
+        errors.syntaxError(line, " ", message);
+        hadError = true;
     }
     private boolean isAlphaNum(char c){
         return isAlpha(c) || isDigit(c);
@@ -187,4 +274,7 @@ public class Scanner {
     private boolean isDigit(char c){
         return c>='0' && c<='9';
     }
+    private boolean isContinuationByte(char c){
+        return (c & 0xc0) == 0x80;
+    }
 }
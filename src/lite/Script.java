@@ -0,0 +1,30 @@
+package lite;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+
+// A compiled program, made by Engine.compile. The same Script can run in
+// any number of Contexts at once: running it never changes what it does.
+// What the executors do write into its nodes are caches, the declaration
+// each call site last called, the operators' specializations and the
+// Jit's call counts and compiled code, each of which is safe to race on.
+public final class Script {
+    final List<Stmt> statements;
+    // the globals it refers to, linked to a Context's as it runs there
+    final Globals.Names names;
+
+    Script(List<Stmt> statements, Globals.Names names){
+        this.statements = statements;
+        this.names = names;
+    }
+
+    // Runs in a Context of its own, whose globals are the natives and
+    // bindings, so one run never sees what another defined. False after a
+    // runtime error, which has been reported to errors.
+    public boolean run(Map<String,?> bindings, ErrorSink errors, PrintStream out){
+        Context context = new Context(new Interpreter(errors, out));
+        bindings.forEach(context::define);
+        return context.run(this);
+    }
+}
@@ -0,0 +1,82 @@
+package lite;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+// Keeps the optimized and resolved statements of script files on disk so
+// running an unchanged script again skips the Scanner, Parser, Optimizer
+// and Resolver. Entries are named by the SHA-256 of the source, the
+// interpreter version and the optimization level, so an edited script or
+// a new interpreter simply misses. The cache is best effort: anything that
+// goes wrong reading or writing an entry just means parsing again.
+class ScriptCache {
+    private static final int BUFFER = 1 << 16;
+
+    private final Path directory;
+
+    ScriptCache(Path directory){
+        this.directory = directory;
+    }
+
+    // $JLITE_CACHE, or ~/.cache/jlite
+    static ScriptCache standard(){
+        String configured = System.getenv("JLITE_CACHE");
+        if(configured != null && !configured.isEmpty()) return new ScriptCache(Paths.get(configured));
+        return new ScriptCache(Paths.get(System.getProperty("user.home"), ".cache", "jlite"));
+    }
+
+    String key(ByteBuffer source, int optimizationLevel){
+        try{
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(source.duplicate());
+            return HexFormat.of().formatHex(digest.digest())
+                + "-" + Lite.VERSION + "-O" + optimizationLevel;
+        }catch(NoSuchAlgorithmException error){
+            throw new IllegalStateException(error);
+        }
+    }
+
+    // the cached script, or null when there is no usable entry
+    Script load(String key){
+        Path file = directory.resolve(key + ".jlc");
+        if(!Files.isRegularFile(file)) return null;
+        try(DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file), BUFFER))){
+            return AstCodec.read(in);
+        }catch(IOException | RuntimeException | StackOverflowError error){
+            return null;
+        }
+    }
+
+    // written to a temporary file first so a concurrent run never reads half an entry
+    void store(String key, Script script){
+        Path temporary = null;
+        try{
+            Files.createDirectories(directory);
+            temporary = Files.createTempFile(directory, key, ".tmp");
+            try(DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temporary), BUFFER))){
+                AstCodec.write(script, out);
+            }
+            Files.move(temporary, directory.resolve(key + ".jlc"),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }catch(IOException | StackOverflowError error){
+            try{
+                if(temporary != null) Files.deleteIfExists(temporary);
+            }catch(IOException ignored){
+                // nothing more to do
+            }
+        }
+    }
+}
@@ -18,6 +18,7 @@ abstract class Stmt{
 		T visitPrintStmt(Print stmt);
 		T visitVarStmt(Var stmt);
 		T visitWhileStmt(While stmt);
+		T visitForRangeStmt(ForRange stmt);
 		T visitReturnStmt(Return stmt);
 		T visitBreakStmt(Break stmt);
 	}
@@ -27,6 +28,8 @@ abstract class Stmt{
 			this.statements=statements;
 		}
 		final List<Stmt> statements;
+		int slots;
+		int[] hoisted;
 		@Override
 		<T> T accept(Visitor<T> visitor){
 			return visitor.visitBlockStmt(this);
@@ -51,6 +54,16 @@ abstract class Stmt{
 		final Token name;
 		final List<Token> params;
 		final List<Stmt> body;
+		int slot=-1;
+		int slots;
+		int calls;
+		Jit.Code jit;
+		volatile LazyBody lazy;
+		boolean cell;
+		boolean redeclaration;
+		int[] captures;
+		boolean[] cells;
+		int[] hoisted;
 		@Override
 		<T> T accept(Visitor<T> visitor){
 			return visitor.visitFunctionStmt(this);
@@ -87,6 +100,9 @@ abstract class Stmt{
 		}
 		final Token name;
 		final Expr initializer;
+		int slot=-1;
+		boolean cell;
+		boolean redeclaration;
 		@Override
 		<T> T accept(Visitor<T> visitor){
 			return visitor.visitVarStmt(this);
@@ -104,6 +120,27 @@ abstract class Stmt{
 			return visitor.visitWhileStmt(this);
 		}
 	}
+	static class ForRange extends Stmt {
+		ForRange(Token name, Expr start, Expr end, Expr step, Stmt body){
+			this.name=name;
+			this.start=start;
+			this.end=end;
+			this.step=step;
+			this.body=body;
+		}
+		final Token name;
+		final Expr start;
+		final Expr end;
+		final Expr step;
+		final Stmt body;
+		int slot;
+		int slots;
+		boolean cell;
+		@Override
+		<T> T accept(Visitor<T> visitor){
+			return visitor.visitForRangeStmt(this);
+		}
+	}
 	static class Return extends Stmt {
 		Return(Token keyword, Expr value){
 			this.keyword=keyword;
@@ -111,6 +148,7 @@ abstract class Stmt{
 		}
 		final Token keyword;
 		final Expr value;
+		boolean tailCall;
 		@Override
 		<T> T accept(Visitor<T> visitor){
 			return visitor.visitReturnStmt(this);
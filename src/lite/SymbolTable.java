@@ -0,0 +1,67 @@
+package lite;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Interns identifier names straight from the source bytes. A name seen
+// before is found by hashing and comparing the bytes in place, so only the
+// first occurrence of each name allocates, and every occurrence comes back
+// as the same String. Each Scanner has its own, filled only by the thread
+// scanning, so it takes no lock and goes away with the compilation.
+final class SymbolTable {
+    private String[] names = new String[64];
+    private byte[][] spellings = new byte[64][];
+    private int[] hashes = new int[64];
+    private int count = 0;
+
+    String intern(ByteBuffer source, int start, int length){
+        int hash = hash(source, start, length);
+        int mask = names.length-1;
+        int index = hash & mask;
+        while(names[index] != null){
+            if(hashes[index] == hash && matches(spellings[index], source, start, length)) return names[index];
+            index = (index+1) & mask;
+        }
+
+        byte[] spelling = new byte[length];
+        source.get(start, spelling);
+        String name = new String(spelling, StandardCharsets.UTF_8);
+        names[index] = name;
+        spellings[index] = spelling;
+        hashes[index] = hash;
+        if(++count*2 > names.length) grow();
+        return name;
+    }
+
+    private static int hash(ByteBuffer source, int start, int length){
+        int hash = length;
+        for(int i = start ; i < start+length ; ++i){
+            hash = 31*hash + source.get(i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+    private static boolean matches(byte[] spelling, ByteBuffer source, int start, int length){
+        if(spelling.length != length) return false;
+        for(int i = 0 ; i < spelling.length ; ++i){
+            if(spelling[i] != source.get(start+i)) return false;
+        }
+        return true;
+    }
+    private void grow(){
+        String[] oldNames = names;
+        byte[][] oldSpellings = spellings;
+        int[] oldHashes = hashes;
+        names = new String[oldNames.length*2];
+        spellings = new byte[oldNames.length*2][];
+        hashes = new int[oldNames.length*2];
+        int mask = names.length-1;
+        for(int i = 0 ; i < oldNames.length ; ++i){
+            if(oldNames[i] == null) continue;
+            int index = oldHashes[i] & mask;
+            while(names[index] != null) index = (index+1) & mask;
+            names[index] = oldNames[i];
+            spellings[index] = oldSpellings[i];
+            hashes[index] = oldHashes[i];
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package lite;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// What spawn returns: a function running on a thread of its own, with an
+// Interpreter of its own over the globals of the one that spawned it.
+// await blocks until it ends and gives its return value, or raises the
+// runtime error that stopped it again in the awaiting thread. Anything
+// else that stops it becomes a runtime error at the await.
+final class Task {
+    // Thread.startVirtualThread where the running Java has it, null before 21
+    private static final MethodHandle START_VIRTUAL = startVirtual();
+    // otherwise, and if virtual threads turn out to be disabled, daemon
+    // threads, so that tasks never keep the program alive either
+    private static volatile ExecutorService platform = null;
+
+    private final CompletableFuture<Object> result = new CompletableFuture<>();
+
+    Task(LiteCallable function, Interpreter spawner){
+        start(() -> {
+            try{
+                result.complete(function.call0(new Interpreter(spawner)));
+            }catch(RuntimeError error){
+                result.completeExceptionally(error);
+            }catch(StackOverflowError error){
+                result.completeExceptionally(new RuntimeError(null, "Stack overflow."));
+            }catch(Throwable error){
+                // whatever stops the task has to complete it, or await never returns
+                result.completeExceptionally(new RuntimeError(null, "Task failed: "+error));
+            }
+        });
+    }
+
+    Object await(){
+        try{
+            return result.join();
+        }catch(CompletionException error){
+            throw (RuntimeError)error.getCause();
+        }
+    }
+
+    private static void start(Runnable task){
+        if(START_VIRTUAL != null && platform == null){
+            try{
+                START_VIRTUAL.invokeExact(task);
+                return;
+            }catch(UnsupportedOperationException error){
+                // a preview Java without --enable-preview
+            }catch(Throwable error){
+                throw new IllegalStateException(error);
+            }
+        }
+        platform().execute(task);
+    }
+    private static ExecutorService platform(){
+        if(platform == null){
+            synchronized(Task.class){
+                if(platform == null){
+                    platform = Executors.newCachedThreadPool(task -> {
+                        Thread thread = new Thread(task);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return platform;
+    }
+    private static MethodHandle startVirtual(){
+        try{
+            return MethodHandles.publicLookup()
+                .findStatic(Thread.class, "startVirtualThread",
+                    MethodType.methodType(Thread.class, Runnable.class))
+                .asType(MethodType.methodType(void.class, Runnable.class));
+        }catch(ReflectiveOperationException error){
+            return null;
+        }
+    }
+
+    @Override
+    public String toString(){
+        return "<task>";
+    }
+}
@@ -0,0 +1,152 @@
+package lite;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static lite.TokenType.*;
+
+// The tokens of one source, kept as parallel arrays instead of one Token
+// object each: type ordinal and byte offset and length into the source,
+// plus a table of the token index each new line starts at. Literal values
+// sit in a side table, which holds the interned name for identifiers and
+// stays null for every other token. A Token is only made when the Parser
+// puts one into the AST.
+//
+// Indices count from the start of the source, but the arrays only hold
+// the tokens from `base` on: the Parser lets go of the ones it is done
+// with, so the buffer stays the size of the stretch being parsed. A lazy
+// or parallel parse comes back to earlier tokens and keeps them all.
+final class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final byte IDENTIFIER_ORDINAL = (byte)IDENTIFIER.ordinal();
+    // lexemes of the tokens that are always spelled the same way
+    private static final String[] TEXT = new String[TYPES.length];
+    static{
+        TokenType[] symbols = {
+            LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE, COMMA, DOT, SEMICOLON,
+            MINUS, PLUS, SLASH, STAR, BIT_OR, BIT_AND, BIT_XOR, BIT_NOT, QUESTION_MARK, COLON,
+            BANG, BANG_EQUAL, EQUAL, EQUAL_EQUAL, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL
+        };
+        String[] spellings = {
+            "(", ")", "{", "}", ",", ".", ";",
+            "-", "+", "/", "*", "|", "&", "^", "~", "?", ":",
+            "!", "!=", "=", "==", ">", ">=", "<", "<="
+        };
+        for(int i = 0 ; i < symbols.length ; ++i) TEXT[symbols[i].ordinal()] = spellings[i];
+        for(int type = AND.ordinal() ; type <= BREAK.ordinal() ; ++type){
+            TEXT[type] = TYPES[type].name().toLowerCase(Locale.ROOT);
+        }
+        TEXT[EOF.ordinal()] = "";
+    }
+
+    private final ByteBuffer source;
+    private byte[] types;
+    private int[] starts;
+    private int[] lengths;
+    private Object[] literals;
+    // index of the token in slot 0 of the arrays, and of the one after the last
+    private int base = 0;
+    private int size = 0;
+    private boolean keep = false;
+    // the line of token i is lineNumbers[k] for the last k with
+    // lineStarts[k] <= i, one entry per line that has tokens on it
+    private int[] lineStarts = new int[64];
+    private int[] lineNumbers = new int[64];
+    private int lineCount = 0;
+
+    TokenBuffer(ByteBuffer source){
+        this.source = source;
+        types = new byte[256];
+        starts = new int[256];
+        lengths = new int[256];
+        literals = new Object[256];
+    }
+
+    void add(TokenType type, int start, int length, int line, Object literal){
+        int slot = size - base;
+        if(slot == types.length){
+            int capacity = slot + (slot >> 1);
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            literals = Arrays.copyOf(literals, capacity);
+        }
+        if(lineCount == 0 || lineNumbers[lineCount-1] != line){
+            if(lineCount == lineStarts.length){
+                lineStarts = Arrays.copyOf(lineStarts, lineCount*2);
+                lineNumbers = Arrays.copyOf(lineNumbers, lineCount*2);
+            }
+            lineStarts[lineCount] = size;
+            lineNumbers[lineCount] = line;
+            lineCount++;
+        }
+        types[slot] = (byte)type.ordinal();
+        starts[slot] = start;
+        lengths[slot] = length;
+        literals[slot] = literal;
+        size++;
+    }
+
+    // every token from now on stays, for a parse that goes back
+    void keep(){
+        keep = true;
+    }
+    // Tokens before index will not be asked for again. They are dropped
+    // once they take up half the arrays, so the arrays only grow when the
+    // tokens still needed fill them.
+    void release(int index){
+        int dead = index - base;
+        if(keep || dead < (types.length >> 1)) return;
+        int live = size - index;
+        System.arraycopy(types, dead, types, 0, live);
+        System.arraycopy(starts, dead, starts, 0, live);
+        System.arraycopy(lengths, dead, lengths, 0, live);
+        System.arraycopy(literals, dead, literals, 0, live);
+        Arrays.fill(literals, live, live + dead, null);
+        base = index;
+        // the last line starting at or before base covers it
+        int first = lineIndex(base);
+        System.arraycopy(lineStarts, first, lineStarts, 0, lineCount - first);
+        System.arraycopy(lineNumbers, first, lineNumbers, 0, lineCount - first);
+        lineCount -= first;
+    }
+
+    int size(){
+        return size;
+    }
+    TokenType type(int index){
+        return TYPES[types[index - base]];
+    }
+    int line(int index){
+        return lineNumbers[lineIndex(index)];
+    }
+    // the entry in the line table for the line of token index
+    private int lineIndex(int index){
+        int low = 0;
+        int high = lineCount-1;
+        while(low < high){
+            int middle = (low + high + 1) >>> 1;
+            if(lineStarts[middle] <= index) low = middle;
+            else high = middle-1;
+        }
+        return low;
+    }
+    Object literal(int index){
+        int slot = index - base;
+        return types[slot] == IDENTIFIER_ORDINAL ? null : literals[slot];
+    }
+    String lexeme(int index){
+        int slot = index - base;
+        String text = TEXT[types[slot]];
+        if(text != null) return text;
+        if(types[slot] == IDENTIFIER_ORDINAL) return (String)literals[slot];
+        byte[] bytes = new byte[lengths[slot]];
+        source.get(starts[slot], bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    Token token(int index){
+        return new Token(type(index), lexeme(index), literal(index), line(index));
+    }
+}
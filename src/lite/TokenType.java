@@ -13,6 +13,7 @@ enum TokenType{
     // One or two symbols
     BANG,BANG_EQUAL,EQUAL,EQUAL_EQUAL,
     GREATER,GREATER_EQUAL,LESS,LESS_EQUAL,
+    DOT_DOT,
 
     // Literals
     IDENTIFIER,STRING,NUMBER,
@@ -0,0 +1,53 @@
+package lite.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public final class Chunk {
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    int count = 0;
+    Object[] constants;
+
+    private final List<Object> constantList = new ArrayList<>();
+    private final Map<Object,Integer> constantIndex = new HashMap<>();
+
+    public void write(int b, int line){
+        if(count == code.length){
+            code  = Arrays.copyOf(code, count*2);
+            lines = Arrays.copyOf(lines, count*2);
+        }
+        code[count]  = (byte)b;
+        lines[count] = line;
+        count++;
+    }
+
+    public void patch(int offset, int b){
+        code[offset] = (byte)b;
+    }
+
+    public int count(){
+        return count;
+    }
+
+    // numbers, strings and names are shared, functions always get their own entry
+    public int addConstant(Object value){
+        if(value instanceof Double || value instanceof String){
+            Integer index = constantIndex.get(value);
+            if(index != null) return index;
+            constantIndex.put(value, constantList.size());
+        }
+        constantList.add(value);
+        return constantList.size()-1;
+    }
+
+    // called once the compiler is done with the chunk
+    public void finish(){
+        code  = Arrays.copyOf(code, count);
+        lines = Arrays.copyOf(lines, count);
+        constants = constantList.toArray();
+    }
+}
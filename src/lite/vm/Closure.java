@@ -0,0 +1,16 @@
+package lite.vm;
+
+final class Closure {
+    final CompiledFunction function;
+    final Upvalue[] upvalues;
+
+    Closure(CompiledFunction function, Upvalue[] upvalues){
+        this.function = function;
+        this.upvalues = upvalues;
+    }
+
+    @Override
+    public String toString(){
+        return function.toString();
+    }
+}
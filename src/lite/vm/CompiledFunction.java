@@ -0,0 +1,27 @@
+package lite.vm;
+
+public final class CompiledFunction {
+    final String name;
+    final int arity;
+    final Chunk chunk = new Chunk();
+    int upvalueCount = 0;
+
+    public CompiledFunction(String name, int arity){
+        this.name = name;
+        this.arity = arity;
+    }
+
+    public Chunk chunk(){
+        return chunk;
+    }
+
+    public void setUpvalueCount(int upvalueCount){
+        this.upvalueCount = upvalueCount;
+    }
+
+    @Override
+    public String toString(){
+        if(name == null) return "<script>";
+        return "<function "+name+">";
+    }
+}
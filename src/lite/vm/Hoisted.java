@@ -0,0 +1,15 @@
+package lite.vm;
+
+// In the slot of a local that a closure captured before the local was
+// declared, until the declaration stores into it. Reads and assignments
+// through the closure go on to what the name means outside the local's
+// scope: a captured variable, or the global in slot global.
+final class Hoisted {
+    final Upvalue upvalue;
+    final int global;
+
+    Hoisted(Upvalue upvalue, int global){
+        this.upvalue = upvalue;
+        this.global = global;
+    }
+}
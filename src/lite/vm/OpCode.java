@@ -0,0 +1,58 @@
+package lite.vm;
+
+// Instruction set of the VM. Operands follow the opcode inline:
+// CONSTANT, *_GLOBAL, *_LOCAL, *_UPVALUE and CLOSURE take a 16 bit index,
+// a global's being the slot VM.globalSlot gave its name, the jumps a 16
+// bit offset and CALL an 8 bit argument count. CLOSURE is followed by an
+// (isLocal byte, 16 bit index) pair per captured variable.
+// FOR_RANGE takes the slot of a range loop's counter, which its end and
+// step follow, and the offset to jump by once the counter is past the end.
+// HOISTED_* push a Hoisted for the local, global or upvalue they index.
+public final class OpCode {
+    public static final byte CONSTANT      = 0;
+    public static final byte NIL           = 1;
+    public static final byte TRUE          = 2;
+    public static final byte FALSE         = 3;
+    public static final byte POP           = 4;
+    public static final byte GET_LOCAL     = 5;
+    public static final byte SET_LOCAL     = 6;
+    public static final byte GET_GLOBAL    = 7;
+    public static final byte DEFINE_GLOBAL = 8;
+    public static final byte SET_GLOBAL    = 9;
+    public static final byte GET_UPVALUE   = 10;
+    public static final byte SET_UPVALUE   = 11;
+    public static final byte EQUAL         = 12;
+    public static final byte NOT_EQUAL     = 13;
+    public static final byte GREATER       = 14;
+    public static final byte GREATER_EQUAL = 15;
+    public static final byte LESS          = 16;
+    public static final byte LESS_EQUAL    = 17;
+    public static final byte ADD           = 18;
+    public static final byte SUBTRACT      = 19;
+    public static final byte MULTIPLY      = 20;
+    public static final byte DIVIDE        = 21;
+    public static final byte AND           = 22;
+    public static final byte OR            = 23;
+    public static final byte BIT_AND       = 24;
+    public static final byte BIT_OR        = 25;
+    public static final byte BIT_XOR       = 26;
+    public static final byte NOT           = 27;
+    public static final byte NEGATE        = 28;
+    public static final byte BIT_NOT       = 29;
+    public static final byte PRINT         = 30;
+    public static final byte JUMP          = 31;
+    public static final byte JUMP_IF_FALSE = 32;
+    public static final byte LOOP          = 33;
+    public static final byte CALL          = 34;
+    public static final byte CLOSURE       = 35;
+    public static final byte CLOSE_UPVALUE = 36;
+    public static final byte RETURN        = 37;
+    public static final byte RANGE_BOUND   = 38;
+    public static final byte RANGE_STEP    = 39;
+    public static final byte FOR_RANGE     = 40;
+    public static final byte HOISTED_LOCAL   = 41;
+    public static final byte HOISTED_UPVALUE = 42;
+    public static final byte HOISTED_GLOBAL  = 43;
+
+    private OpCode(){}
+}
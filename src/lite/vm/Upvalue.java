@@ -0,0 +1,14 @@
+package lite.vm;
+
+// A captured variable. While open it points at a VM stack slot,
+// once that slot is popped the value moves into the Upvalue itself.
+final class Upvalue {
+    int slot;
+    Object closed;
+    Upvalue next;
+
+    Upvalue(int slot, Upvalue next){
+        this.slot = slot;
+        this.next = next;
+    }
+}
@@ -0,0 +1,585 @@
+package lite.vm;
+
+import lite.Interpreter;
+import lite.LiteCallable;
+import lite.RuntimeError;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static lite.vm.OpCode.*;
+
+// Stack based virtual machine running the chunks produced by the
+// BytecodeCompiler. Semantics and runtime error messages follow the
+// tree-walking Interpreter, which stays the reference implementation.
+public final class VM {
+    // calls nest at most this deep, there are no tail calls to save frames
+    private static final int FRAMES_MAX = 1 << 16;
+    // in a global's slot until it is defined, null being nil
+    private static final Object UNDEFINED = new Object();
+
+    private static final class CallFrame {
+        Closure closure;
+        int ip;
+        int base;
+    }
+
+    // A global gets a slot the first time the BytecodeCompiler meets its
+    // name, so the *_GLOBAL instructions index globals directly. Slots
+    // stay with the VM, later scripts find the names earlier ones used.
+    private final Map<String,Integer> globalSlots = new HashMap<>();
+    private String[] globalNames = new String[64];
+    private Object[] globals = filled(new Object[64], 0);
+    private Object[] stack = new Object[256];
+    private int sp = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    // open upvalues, sorted by stack slot from the top down
+    private Upvalue openUpvalues = null;
+
+    public void defineGlobal(String name, Object value){
+        globals[globalSlot(name)] = value;
+    }
+
+    // Natives of the VM's own, in place of the Interpreter's ones of the
+    // same name, which work on the Interpreter's globals. Only the VM's
+    // thread reaches its globals, so atomicAdd is a plain add here, and
+    // the parallel natives only take natives, which keep to their own.
+    public void defineNatives(){
+        for(String name : new String[]{"parallelFor", "parallelSum", "parallelMin", "parallelMax"}){
+            Integer slot = globalSlots.get(name);
+            if(slot == null || !(globals[slot] instanceof LiteCallable)) continue;
+            LiteCallable parallel = (LiteCallable)globals[slot];
+            defineGlobal(name, new LiteCallable() {
+                @Override
+                public int arity() {return parallel.arity();}
+                @Override
+                public Object call(Interpreter interpreter, List<Object> arguments){
+                    if(arguments.get(2) instanceof Closure){
+                        throw new RuntimeError(name+" can only run native functions under --vm.");
+                    }
+                    return parallel.call(interpreter, arguments);
+                }
+                @Override
+                public String toString(){return "<native function>";}
+            });
+        }
+        defineGlobal("atomicAdd", new LiteCallable() {
+            @Override
+            public int arity() {return 2;}
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments){
+                if(!(arguments.get(0) instanceof String)){
+                    throw new RuntimeError("atomicAdd needs the name of a global.");
+                }
+                if(!(arguments.get(1) instanceof Double)){
+                    throw new RuntimeError("Operand must be a number.");
+                }
+                String name = (String)arguments.get(0);
+                Integer slot = globalSlots.get(name);
+                Object value = slot == null ? UNDEFINED : globals[slot];
+                if(value == UNDEFINED) throw new RuntimeError("Undefined variable '"+name+"'.");
+                if(!(value instanceof Double)){
+                    throw new RuntimeError("Can only add to a global holding a number.");
+                }
+                Double sum = (Double)value + (Double)arguments.get(1);
+                globals[slot] = sum;
+                return sum;
+            }
+            @Override
+            public String toString(){return "<native function>";}
+        });
+    }
+
+    public int globalSlot(String name){
+        Integer slot = globalSlots.get(name);
+        if(slot != null) return slot;
+        slot = globalSlots.size();
+        if(slot == globals.length){
+            globalNames = Arrays.copyOf(globalNames, slot*2);
+            globals = filled(Arrays.copyOf(globals, slot*2), slot);
+        }
+        globalNames[slot] = name;
+        globalSlots.put(name, slot);
+        return slot;
+    }
+    private static Object[] filled(Object[] globals, int from){
+        Arrays.fill(globals, from, globals.length, UNDEFINED);
+        return globals;
+    }
+
+    public void interpret(CompiledFunction script){
+        Closure closure = new Closure(script, new Upvalue[0]);
+        push(closure);
+        pushFrame(closure, 0);
+        try{
+            run();
+        }finally{
+            Arrays.fill(stack, 0, sp, null);
+            sp = 0;
+            frameCount = 0;
+            openUpvalues = null;
+        }
+    }
+
+    private void run(){
+        CallFrame frame = frames[frameCount-1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        int ip = frame.ip;
+        int base = frame.base;
+        // nothing compiles while the VM runs, so no new slots either
+        Object[] globals = this.globals;
+
+        while(true){
+            int start = ip;
+            switch(code[ip++]){
+                case CONSTANT:
+                    push(constants[readShort(code, ip)]);
+                    ip += 2;
+                    break;
+                case NIL:   push(null); break;
+                case TRUE:  push(true); break;
+                case FALSE: push(false); break;
+                case POP:   stack[--sp] = null; break;
+
+                case GET_LOCAL:
+                    push(stack[base + readShort(code, ip)]);
+                    ip += 2;
+                    break;
+                case SET_LOCAL:
+                    stack[base + readShort(code, ip)] = stack[sp-1];
+                    ip += 2;
+                    break;
+                case GET_GLOBAL: {
+                    int slot = readShort(code, ip);
+                    ip += 2;
+                    Object value = globals[slot];
+                    if(value == UNDEFINED){
+                        throw error(frame, start, "Undefined variable '"+globalNames[slot]+"'.");
+                    }
+                    push(value);
+                    break;
+                }
+                case DEFINE_GLOBAL:
+                    globals[readShort(code, ip)] = pop();
+                    ip += 2;
+                    break;
+                case SET_GLOBAL: {
+                    int slot = readShort(code, ip);
+                    ip += 2;
+                    if(globals[slot] == UNDEFINED){
+                        throw error(frame, start, "Undefined variable '"+globalNames[slot]+"'.");
+                    }
+                    globals[slot] = stack[sp-1];
+                    break;
+                }
+                case GET_UPVALUE: {
+                    Upvalue upvalue = frame.closure.upvalues[readShort(code, ip)];
+                    ip += 2;
+                    Object value = upvalue.slot >= 0 ? stack[upvalue.slot] : upvalue.closed;
+                    if(value instanceof Hoisted) value = get((Hoisted)value, frame, start);
+                    push(value);
+                    break;
+                }
+                case SET_UPVALUE: {
+                    Upvalue upvalue = frame.closure.upvalues[readShort(code, ip)];
+                    ip += 2;
+                    set(upvalue, stack[sp-1], frame, start);
+                    break;
+                }
+                case HOISTED_LOCAL:
+                    push(new Hoisted(captureUpvalue(base + readShort(code, ip)), -1));
+                    ip += 2;
+                    break;
+                case HOISTED_UPVALUE:
+                    push(new Hoisted(frame.closure.upvalues[readShort(code, ip)], -1));
+                    ip += 2;
+                    break;
+                case HOISTED_GLOBAL:
+                    push(new Hoisted(null, readShort(code, ip)));
+                    ip += 2;
+                    break;
+
+                case EQUAL: {
+                    Object right = pop();
+                    Object left  = pop();
+                    push(isEqual(left, right));
+                    break;
+                }
+                case NOT_EQUAL: {
+                    Object right = pop();
+                    Object left  = pop();
+                    push(!isEqual(left, right));
+                    break;
+                }
+                case GREATER: {
+                    Object right = pop();
+                    Object left  = pop();
+                    checkNumberOperands(frame, start, left, right);
+                    push((double)left > (double)right);
+                    break;
+                }
+                case GREATER_EQUAL: {
+                    Object right = pop();
+                    Object left  = pop();
+                    checkNumberOperands(frame, start, left, right);
+                    push((double)left >= (double)right);
+                    break;
+                }
+                case LESS: {
+                    Object right = pop();
+                    Object left  = pop();
+                    checkNumberOperands(frame, start, left, right);
+                    push((double)left < (double)right);
+                    break;
+                }
+                case LESS_EQUAL: {
+                    Object right = pop();
+                    Object left  = pop();
+                    checkNumberOperands(frame, start, left, right);
+                    push((double)left <= (double)right);
+                    break;
+                }
+                case ADD: {
+                    Object right = pop();
+                    Object left  = pop();
+                    if(left instanceof Double && right instanceof Double){
+                        push((double)left + (double)right);
+                    }else if(left instanceof String && right instanceof String){
+                        push((String)left + (String)right);
+                    }else if(left instanceof String && right instanceof Double){
+                        push((String)left + stringify(right));
+                    }else if(left instanceof Double && right instanceof String){
+                        push(stringify(left) + (String)right);
+                    }else{
+                        throw error(frame, start, "Operands must be two numbers or two strings.");
+                    }
+                    break;
+                }
+                case SUBTRACT: {
+                    Object right = pop();
+                    Object left  = pop();
+                    checkNumberOperands(frame, start, left, right);
+                    push((double)left - (double)right);
+                    break;
+                }
+                case MULTIPLY: {
+                    Object right = pop();
+                    Object left  = pop();
+                    if(left instanceof Double && right instanceof Double){
+                        push((double)left * (double)right);
+                    }else if(left instanceof String && right instanceof Double){
+                        checkRoundNumberOperand(frame, start, right);
+                        push(((String)left).repeat((int)(long)Math.floor((double)right)));
+                    }else if(left instanceof Double && right instanceof String){
+                        checkRoundNumberOperand(frame, start, left);
+                        push(((String)right).repeat((int)(long)Math.floor((double)left)));
+                    }else{
+                        throw error(frame, start, "Invalid operand types. Must be two numbers or a number and a string.");
+                    }
+                    break;
+                }
+                case DIVIDE: {
+                    Object right = pop();
+                    Object left  = pop();
+                    checkNumberOperands(frame, start, left, right);
+                    push((double)left / (double)right);
+                    break;
+                }
+                case AND: {
+                    Object right = pop();
+                    Object left  = pop();
+                    push(isTruthy(left) && isTruthy(right) ? right : (Object)false);
+                    break;
+                }
+                case OR: {
+                    Object right = pop();
+                    Object left  = pop();
+                    if(isTruthy(left)) push(left);
+                    else if(isTruthy(right)) push(right);
+                    else push(false);
+                    break;
+                }
+                case BIT_AND: {
+                    Object right = pop();
+                    Object left  = pop();
+                    checkRoundNumberOperands(frame, start, left, right);
+                    push((double)((int)Math.round((double)left) & (int)Math.round((double)right)));
+                    break;
+                }
+                case BIT_OR: {
+                    Object right = pop();
+                    Object left  = pop();
+                    checkRoundNumberOperands(frame, start, left, right);
+                    push((double)((int)Math.round((double)left) | (int)Math.round((double)right)));
+                    break;
+                }
+                case BIT_XOR: {
+                    Object right = pop();
+                    Object left  = pop();
+                    checkRoundNumberOperands(frame, start, left, right);
+                    push((double)((int)Math.round((double)left) ^ (int)Math.round((double)right)));
+                    break;
+                }
+                case NOT:
+                    stack[sp-1] = !isTruthy(stack[sp-1]);
+                    break;
+                case NEGATE: {
+                    Object right = stack[sp-1];
+                    if(!(right instanceof Double)) throw error(frame, start, "Operand must be a number.");
+                    stack[sp-1] = -(double)right;
+                    break;
+                }
+                case BIT_NOT: {
+                    Object right = stack[sp-1];
+                    checkRoundNumberOperand(frame, start, right);
+                    stack[sp-1] = (double)(~(int)Math.round((double)right));
+                    break;
+                }
+
+                case PRINT:
+                    System.out.println(stringify(pop()));
+                    break;
+
+                case JUMP:
+                    ip += 2 + readShort(code, ip);
+                    break;
+                case JUMP_IF_FALSE:
+                    if(isTruthy(pop())) ip += 2;
+                    else ip += 2 + readShort(code, ip);
+                    break;
+                case LOOP:
+                    ip += 2 - readShort(code, ip);
+                    break;
+                case RANGE_BOUND:
+                    if(!(stack[sp-1] instanceof Double)){
+                        throw error(frame, start, "Range bounds must be numbers.");
+                    }
+                    break;
+                case RANGE_STEP:
+                    if(!(stack[sp-1] instanceof Double) || (double)stack[sp-1] == 0){
+                        throw error(frame, start, "Range step must be a non-zero number.");
+                    }
+                    break;
+                case FOR_RANGE: {
+                    int counter = base + readShort(code, ip);
+                    double i = (double)stack[counter];
+                    double end = (double)stack[counter+1];
+                    double step = (double)stack[counter+2];
+                    if(step > 0 ? i < end : i > end){
+                        // the loop variable, a copy of the counter
+                        push(stack[counter]);
+                        ip += 4;
+                    }else{
+                        ip += 4 + readShort(code, ip+2);
+                    }
+                    break;
+                }
+
+                case CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    Object callee = stack[sp-1-argCount];
+                    if(callee instanceof Closure){
+                        Closure closure = (Closure)callee;
+                        if(argCount != closure.function.arity){
+                            throw error(frame, start,
+                                "Expected "+closure.function.arity+" arguments but got "+argCount+".");
+                        }
+                        frame.ip = ip;
+                        frame = pushFrame(closure, sp-1-argCount);
+                        if(frame == null){
+                            throw error(frames[frameCount-1], start, "Stack overflow.");
+                        }
+                        code = closure.function.chunk.code;
+                        constants = closure.function.chunk.constants;
+                        ip = 0;
+                        base = frame.base;
+                    }else if(callee instanceof LiteCallable){
+                        LiteCallable function = (LiteCallable)callee;
+                        if(argCount != function.arity()){
+                            throw error(frame, start,
+                                "Expected "+function.arity()+" arguments but got "+argCount+".");
+                        }
+                        Object[] arguments = Arrays.copyOfRange(stack, sp-argCount, sp);
+                        Object result;
+                        try{
+                            result = function.call(null, arguments);
+                        }catch(RuntimeError nativeError){
+                            throw error(frame, start, nativeError.getMessage());
+                        }
+                        Arrays.fill(stack, sp-1-argCount, sp, null);
+                        sp -= argCount+1;
+                        push(result);
+                    }else{
+                        throw error(frame, start, "Can only call functions and classes.");
+                    }
+                    break;
+                }
+                case CLOSURE: {
+                    CompiledFunction function = (CompiledFunction)constants[readShort(code, ip)];
+                    ip += 2;
+                    Upvalue[] upvalues = new Upvalue[function.upvalueCount];
+                    for(int i = 0 ; i < upvalues.length ; ++i){
+                        boolean isLocal = code[ip++] != 0;
+                        int index = readShort(code, ip);
+                        ip += 2;
+                        upvalues[i] = isLocal ? captureUpvalue(base + index) : frame.closure.upvalues[index];
+                    }
+                    push(new Closure(function, upvalues));
+                    break;
+                }
+                case CLOSE_UPVALUE:
+                    closeUpvalues(sp-1);
+                    stack[--sp] = null;
+                    break;
+                case RETURN: {
+                    Object result = pop();
+                    closeUpvalues(base);
+                    frameCount--;
+                    Arrays.fill(stack, base, sp, null);
+                    sp = base;
+                    if(frameCount == 0) return;
+
+                    push(result);
+                    frame = frames[frameCount-1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                default:
+                    throw error(frame, start, "Unknown opcode "+code[start]+".");
+            }
+        }
+    }
+
+    private CallFrame pushFrame(Closure closure, int base){
+        if(frameCount == frames.length){
+            if(frameCount == FRAMES_MAX) return null;
+            frames = Arrays.copyOf(frames, frameCount*2);
+        }
+        CallFrame frame = frames[frameCount];
+        if(frame == null) frame = frames[frameCount] = new CallFrame();
+        frameCount++;
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = base;
+        return frame;
+    }
+
+    private Upvalue captureUpvalue(int slot){
+        Upvalue previous = null;
+        Upvalue upvalue = openUpvalues;
+        while(upvalue != null && upvalue.slot > slot){
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+        if(upvalue != null && upvalue.slot == slot) return upvalue;
+
+        Upvalue created = new Upvalue(slot, upvalue);
+        if(previous == null) openUpvalues = created;
+        else previous.next = created;
+        return created;
+    }
+
+    // what a local still undeclared stands for, following any chain of them
+    private Object get(Hoisted hoisted, CallFrame frame, int offset){
+        while(hoisted.upvalue != null){
+            Upvalue upvalue = hoisted.upvalue;
+            Object value = upvalue.slot >= 0 ? stack[upvalue.slot] : upvalue.closed;
+            if(!(value instanceof Hoisted)) return value;
+            hoisted = (Hoisted)value;
+        }
+        Object value = globals[hoisted.global];
+        if(value == UNDEFINED){
+            throw error(frame, offset, "Undefined variable '"+globalNames[hoisted.global]+"'.");
+        }
+        return value;
+    }
+    private void set(Upvalue upvalue, Object value, CallFrame frame, int offset){
+        while(true){
+            Object current = upvalue.slot >= 0 ? stack[upvalue.slot] : upvalue.closed;
+            if(!(current instanceof Hoisted)) break;
+            Hoisted hoisted = (Hoisted)current;
+            if(hoisted.upvalue == null){
+                if(globals[hoisted.global] == UNDEFINED){
+                    throw error(frame, offset, "Undefined variable '"+globalNames[hoisted.global]+"'.");
+                }
+                globals[hoisted.global] = value;
+                return;
+            }
+            upvalue = hoisted.upvalue;
+        }
+        if(upvalue.slot >= 0) stack[upvalue.slot] = value;
+        else upvalue.closed = value;
+    }
+
+    private void closeUpvalues(int last){
+        while(openUpvalues != null && openUpvalues.slot >= last){
+            Upvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.slot = -1;
+            openUpvalues = upvalue.next;
+            upvalue.next = null;
+        }
+    }
+
+    private void push(Object value){
+        if(sp == stack.length) stack = Arrays.copyOf(stack, sp*2);
+        stack[sp++] = value;
+    }
+    private Object pop(){
+        Object value = stack[--sp];
+        stack[sp] = null;
+        return value;
+    }
+    private static int readShort(byte[] code, int ip){
+        return ((code[ip] & 0xff) << 8) | (code[ip+1] & 0xff);
+    }
+
+    private VMError error(CallFrame frame, int offset, String message){
+        return new VMError(message, frame.closure.function.chunk.lines[offset]);
+    }
+    private boolean isTruthy(Object object){
+        if(object == null) return false;
+        if(object instanceof Boolean) return (boolean)object;
+        if(object instanceof Double) return (double)object != 0;
+        if(object instanceof String) return !((String)object).isEmpty();
+        return true;
+    }
+    private boolean isEqual(Object a,Object b){
+        if(a==null && b==null) return true;
+        if(a==null) return false;
+
+        return a.equals(b);
+    }
+    private void checkNumberOperands(CallFrame frame, int offset, Object left, Object right){
+        if(left instanceof Double && right instanceof Double) return;
+        throw error(frame, offset, "Operands must be numbers.");
+    }
+    private void checkRoundNumberOperand(CallFrame frame, int offset, Object operand){
+        if(operand instanceof Double && ((double)operand - (double)Math.round((double)operand) == 0)
+        ) return;
+        throw error(frame, offset, "Operand must be a round number.");
+    }
+    private void checkRoundNumberOperands(CallFrame frame, int offset, Object left, Object right){
+        if( (left  instanceof Double && ((double)left  - (double)Math.round((double)left ) == 0))
+        &&  (right instanceof Double && ((double)right - (double)Math.round((double)right) == 0))
+        ) return;
+        throw error(frame, offset, "Operands must be round numbers.");
+    }
+    private String stringify(Object object){
+        if(object == null) return "nil";
+        if(object instanceof Double){
+            String text = object.toString();
+            if(text.endsWith(".0"))
+                text = text.substring(0,text.length()-2);
+            return text;
+        }
+        return object.toString();
+    }
+}
@@ -0,0 +1,16 @@
+package lite.vm;
+
+public class VMError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final int line;
+
+    VMError(String message, int line){
+        super(message);
+        this.line = line;
+    }
+
+    public int line(){
+        return line;
+    }
+}